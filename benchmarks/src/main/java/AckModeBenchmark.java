@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write latency under each {@link AckMode} on an in-process cluster in which one replica per
+ * group is slow: its REPLICATE_ACKs reach the primary {@code dsm.bench.slowReplicaMicros} late.
+ * After each run every written address is read back through the same client, so a mode that
+ * broke read-your-writes would show up as mismatches.
+ *
+ * <p>Not a JMH benchmark (a run is seconds of cluster traffic, not a hot loop), but shipped in
+ * benchmarks.jar with them:
+ * <pre>
+ *   java -cp benchmarks/target/benchmarks.jar AckModeBenchmark [all] [quorum] [primary]
+ *     -Ddsm.bench.writes=20000 -Ddsm.bench.concurrency=16 -Ddsm.bench.slowReplicaMicros=2000
+ * </pre>
+ */
+public class AckModeBenchmark {
+    private static final int WRITES = Integer.getInteger("dsm.bench.writes", 20000);
+    private static final int WARMUP_WRITES = Integer.getInteger("dsm.bench.warmupWrites", 5000);
+    private static final int CONCURRENCY = Integer.getInteger("dsm.bench.concurrency", 16);
+    private static final long SLOW_REPLICA_MICROS = Long.getLong("dsm.bench.slowReplicaMicros", 2000);
+
+    // Holds back the acks of the last replica of every group
+    private static final class SlowReplicaMessaging extends InMemoryMessagingService {
+        private final List<String> slowReplicas = new ArrayList<>();
+        private final ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "slow-replica-acks");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        SlowReplicaMessaging(PartitionConfig config) {
+            for (List<String> group : config.getReplicationGroups()) {
+                if (group.size() > 1) slowReplicas.add(group.get(group.size() - 1));
+            }
+        }
+
+        @Override
+        public void send(String queue, DSMMessage msg) throws IOException {
+            if (SLOW_REPLICA_MICROS <= 0 || msg.getType() != DSMMessage.Type.REPLICATE_ACK
+                    || !slowReplicas.contains(msg.getReplyToQueue())) {
+                super.send(queue, msg);
+                return;
+            }
+            delayer.schedule(() -> {
+                try {
+                    super.send(queue, msg);
+                } catch (IOException e) {
+                    System.err.println("Failed to deliver delayed ack: " + e.getMessage());
+                }
+            }, SLOW_REPLICA_MICROS, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public void close() {
+            delayer.shutdownNow();
+            super.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<AckMode> modes = new ArrayList<>();
+        for (String arg : args) modes.add(AckMode.valueOf(arg.toUpperCase(Locale.ROOT)));
+        if (modes.isEmpty()) modes.addAll(Arrays.asList(AckMode.values()));
+
+        // Cluster startup prints its own lines, so the table is printed once all runs are over
+        List<String> rows = new ArrayList<>();
+        for (AckMode mode : modes) {
+            rows.add(run(mode));
+        }
+        System.out.println("mode      writes  conc      p50us      p99us     p999us     maxus   writes/s  mismatches");
+        rows.forEach(System.out::println);
+    }
+
+    private static String run(AckMode mode) throws Exception {
+        PartitionConfig config = ConfigServer.createPartitionConfig();
+        SlowReplicaMessaging messaging = new SlowReplicaMessaging(config);
+        LocalCluster cluster = new LocalCluster(config, messaging);
+        cluster.start();
+        try (DSMClient client = new DSMClient(messaging, config)) {
+            int[] values = new int[config.getTotalAddresses()];
+            writes(client, mode, WARMUP_WRITES, values, null);
+
+            long[] latencies = new long[WRITES];
+            long start = System.nanoTime();
+            writes(client, mode, WRITES, values, latencies);
+            long elapsed = System.nanoTime() - start;
+
+            int[] all = new int[values.length];
+            for (int i = 0; i < all.length; i++) all[i] = i;
+            int[] read = client.multiGet(all).join();
+            int mismatches = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (read[i] != values[i]) mismatches++;
+            }
+
+            Arrays.sort(latencies);
+            return String.format("%-8s %7d %5d %10.1f %10.1f %10.1f %9.1f %10.0f %11d", mode, WRITES, CONCURRENCY,
+                    percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                    latencies[latencies.length - 1] / 1000.0, WRITES * 1e9 / elapsed, mismatches);
+        } finally {
+            cluster.stop();
+        }
+    }
+
+    // Keeps CONCURRENCY writes in flight. Each lane writes its own addresses, so values[] ends up
+    // holding the last value written everywhere.
+    private static void writes(DSMClient client, AckMode mode, int count, int[] values, long[] latencies) {
+        List<CompletableFuture<Void>> lanes = new ArrayList<>();
+        for (int lane = 0; lane < CONCURRENCY; lane++) {
+            lanes.add(lane(client, mode, lane, 0, count, values, latencies));
+        }
+        CompletableFuture.allOf(lanes.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private static CompletableFuture<Void> lane(DSMClient client, AckMode mode, int lane, int index, int count,
+                                                int[] values, long[] latencies) {
+        int i = index * CONCURRENCY + lane;
+        if (i >= count) return CompletableFuture.completedFuture(null);
+        int lanes = Math.min(CONCURRENCY, values.length);
+        int slots = values.length / lanes;
+        int address = (lane % lanes) + lanes * ThreadLocalRandom.current().nextInt(slots);
+        int value = ThreadLocalRandom.current().nextInt();
+        long start = System.nanoTime();
+        return client.write(address, value, mode).thenCompose(ignored -> {
+            if (latencies != null) latencies[i] = System.nanoTime() - start;
+            values[address] = value;
+            return lane(client, mode, lane, index + 1, count, values, latencies);
+        });
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1000.0;
+    }
+}
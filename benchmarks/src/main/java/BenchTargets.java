@@ -0,0 +1,217 @@
+import dsm.bench.Target;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * The {@link Target}s the JMH benchmarks in {@code dsm.bench} run, one nested class per
+ * operation. Each prepares {@link #INPUTS} inputs up front so that {@code run(i)} does nothing
+ * but the operation being measured.
+ */
+public class BenchTargets {
+    public static final int INPUTS = 4096; // power of two
+    private static final int MASK = INPUTS - 1;
+
+    // Addresses in [0, words), either ascending or uniformly random
+    static int[] addresses(int words, String access) {
+        int[] addresses = new int[INPUTS];
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < INPUTS; i++) {
+            addresses[i] = access.equals("random") ? random.nextInt(words) : i % words;
+        }
+        return addresses;
+    }
+
+    // params: words, access (sequential|random), tracked (wrap in a MerkleTree like a running node does)
+    static StorageEngine storage(String[] params) {
+        int words = Integer.parseInt(params[0]);
+        StorageEngine storage = new PagedStorageEngine(0, words - 1);
+        for (int address = 0; address < words; address++) storage.write(address, address);
+        if (Boolean.parseBoolean(params[2])) {
+            PartitionConfig config = new PartitionConfig(words, 0, List.of("Bench"));
+            storage = new MerkleTree(storage, config, () -> 0, partitionID -> true).tracking();
+        }
+        return storage;
+    }
+
+    public static class StorageRead implements Target {
+        private final StorageEngine storage;
+        private final int[] addresses;
+
+        public StorageRead(String... params) {
+            storage = storage(params);
+            addresses = addresses(Integer.parseInt(params[0]), params[1]);
+        }
+
+        @Override
+        public long run(int i) {
+            return storage.read(addresses[i & MASK]);
+        }
+    }
+
+    public static class StorageWrite implements Target {
+        private final StorageEngine storage;
+        private final int[] addresses;
+
+        public StorageWrite(String... params) {
+            storage = storage(params);
+            addresses = addresses(Integer.parseInt(params[0]), params[1]);
+        }
+
+        @Override
+        public long run(int i) {
+            storage.write(addresses[i & MASK], i);
+            return i;
+        }
+    }
+
+    // params: codec (binary|json), shape (write|batch<N>, a REPLICATE_BATCH of N entries)
+    static DSMMessage message(String shape) {
+        if (shape.equals("write")) {
+            return new DSMMessage(DSMMessage.Type.WRITE, new Address(12345), 42, "client_reply_0f8e2d1c", 0, 7,
+                    null, null, null, 3, AckMode.QUORUM);
+        }
+        int entries = Integer.parseInt(shape.substring("batch".length()));
+        int[] addresses = new int[entries];
+        int[] values = new int[entries];
+        long[] sequenceNumbers = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            addresses[i] = i * 17;
+            values[i] = i;
+            sequenceNumbers[i] = 1000 + i;
+        }
+        return new DSMMessage(DSMMessage.Type.REPLICATE_BATCH, null, 0, "NodeA", 1000 + entries - 1, 0,
+                addresses, values, sequenceNumbers, 3);
+    }
+
+    static MessageCodec codec(String name) {
+        return switch (name.toLowerCase(Locale.ROOT)) {
+            case "binary" -> new BinaryMessageCodec();
+            case "json" -> new JsonMessageCodec();
+            default -> throw new IllegalArgumentException("Unknown codec: " + name);
+        };
+    }
+
+    public static class Encode implements Target {
+        private final MessageCodec codec;
+        private final DSMMessage msg;
+        private final ByteBuffer buffer;
+
+        public Encode(String... params) {
+            codec = codec(params[0]);
+            msg = message(params[1]);
+            buffer = ByteBuffer.allocate(codec.encode(msg).length);
+        }
+
+        @Override
+        public long run(int i) {
+            buffer.clear();
+            codec.encode(msg, buffer);
+            return buffer.position();
+        }
+    }
+
+    public static class Decode implements Target {
+        private final MessageCodec codec;
+        private final ByteBuffer encoded;
+
+        public Decode(String... params) {
+            codec = codec(params[0]);
+            encoded = ByteBuffer.wrap(codec.encode(message(params[1])));
+        }
+
+        @Override
+        public long run(int i) {
+            return codec.decode(encoded.duplicate()).getSequenceNumber();
+        }
+    }
+
+    // params: mapping (range|interleaved|hashed), total addresses, nodes
+    public static class Routing implements Target {
+        private final PartitionConfig config;
+        private final Address[] addresses = new Address[INPUTS];
+
+        public Routing(String... params) {
+            int total = Integer.parseInt(params[1]);
+            List<String> nodes = new ArrayList<>();
+            for (int i = 0; i < Integer.parseInt(params[2]); i++) nodes.add("Node" + i);
+            config = new PartitionConfig(total, 2, nodes, PartitionConfig.DEFAULT_VIRTUAL_PARTITIONS,
+                    PartitionConfig.Mapping.valueOf(params[0].toUpperCase(Locale.ROOT)));
+            int[] values = addresses(total, "random");
+            for (int i = 0; i < INPUTS; i++) addresses[i] = new Address(values[i]);
+        }
+
+        @Override
+        public long run(int i) {
+            return config.getReplicationGroup(addresses[i & MASK]).size();
+        }
+    }
+
+    // params: reads parked per release. Each run parks that many reads on consecutive sequence
+    // numbers and releases them all; the new read messages count towards the allocation rate.
+    public static class PendingRelease implements Target {
+        private final PendingReads pendingReads;
+        private final int reads;
+        private long served;
+        private long sequence;
+
+        public PendingRelease(String... params) {
+            reads = Integer.parseInt(params[0]);
+            pendingReads = new PendingReads("Bench", 0, read -> served++, read -> { });
+        }
+
+        @Override
+        public long run(int i) {
+            long base = sequence;
+            for (int r = 1; r <= reads; r++) {
+                pendingReads.park(new DSMMessage(DSMMessage.Type.READ, null, 0, null, base + r));
+            }
+            sequence = base + reads;
+            pendingReads.release(sequence);
+            return served;
+        }
+
+        @Override
+        public void close() {
+            pendingReads.close();
+        }
+    }
+
+    // params: ack mode, transport (direct|encoded). One write through the client to the primary,
+    // replicated to both replicas and acknowledged, on an in-process cluster.
+    public static class WriteCycle implements Target {
+        private final LocalCluster cluster;
+        private final DSMClient client;
+        private final AckMode ackMode;
+        private final int[] addresses;
+
+        public WriteCycle(String... params) {
+            ackMode = AckMode.valueOf(params[0].toUpperCase(Locale.ROOT));
+            InMemoryMessagingService messaging = params[1].equals("encoded")
+                    ? new InMemoryMessagingService(new BinaryMessageCodec(), 65536)
+                    : new InMemoryMessagingService();
+            try {
+                cluster = new LocalCluster(ConfigServer.createPartitionConfig(), messaging);
+                cluster.start();
+                client = new DSMClient(messaging, cluster.getPartitionConfig());
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot start the local cluster", e);
+            }
+            addresses = addresses(cluster.getPartitionConfig().getTotalAddresses(), "random");
+        }
+
+        @Override
+        public long run(int i) {
+            client.write(addresses[i & MASK], i, ackMode).join();
+            return i;
+        }
+
+        @Override
+        public void close() {
+            client.close();
+            cluster.stop();
+        }
+    }
+}
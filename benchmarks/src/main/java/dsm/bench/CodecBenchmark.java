@@ -0,0 +1,41 @@
+package dsm.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encoding and decoding a client WRITE and a full REPLICATE_BATCH with each wire codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"binary", "json"})
+    public String codec;
+
+    @Param({"write", "batch64"})
+    public String shape;
+
+    private Target encode;
+    private Target decode;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        encode = Target.load("BenchTargets$Encode", codec, shape);
+        decode = Target.load("BenchTargets$Decode", codec, shape);
+    }
+
+    @Benchmark
+    public long encode() {
+        return encode.run(i++);
+    }
+
+    @Benchmark
+    public long decode() {
+        return decode.run(i++);
+    }
+}
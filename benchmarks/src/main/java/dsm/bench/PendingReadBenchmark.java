@@ -0,0 +1,37 @@
+package dsm.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parking reads on a lagging replica and releasing them once it catches up. One operation
+ * parks {@code reads} reads on consecutive sequence numbers and releases all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PendingReadBenchmark {
+    @Param({"1", "64", "1024"})
+    public String reads;
+
+    private Target release;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        release = Target.load("BenchTargets$PendingRelease", reads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        release.close();
+    }
+
+    @Benchmark
+    public long parkAndRelease() {
+        return release.run(i++);
+    }
+}
@@ -0,0 +1,37 @@
+package dsm.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Address to replication group lookups through PartitionConfig.getReplicationGroup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmark {
+    @Param({"range", "hashed"})
+    public String mapping;
+
+    @Param({"1000000"})
+    public String addresses;
+
+    @Param({"9", "96"})
+    public String nodes;
+
+    private Target routing;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        routing = Target.load("BenchTargets$Routing", mapping, addresses, nodes);
+    }
+
+    @Benchmark
+    public long replicationGroup() {
+        return routing.run(i++);
+    }
+}
@@ -0,0 +1,45 @@
+package dsm.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Word reads and writes on the node's default storage engine, bare and wrapped in the
+ * Merkle tree tracking a running node adds on top.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+    @Param({"1048576"})
+    public String words;
+
+    @Param({"sequential", "random"})
+    public String access;
+
+    @Param({"false", "true"})
+    public String tracked;
+
+    private Target read;
+    private Target write;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        read = Target.load("BenchTargets$StorageRead", words, access, tracked);
+        write = Target.load("BenchTargets$StorageWrite", words, access, tracked);
+    }
+
+    @Benchmark
+    public long read() {
+        return read.run(i++);
+    }
+
+    @Benchmark
+    public long write() {
+        return write.run(i++);
+    }
+}
@@ -0,0 +1,25 @@
+package dsm.bench;
+
+/**
+ * One operation on a piece of the DSM. Implementations live in the default package next to the
+ * classes they drive (see {@code BenchTargets}): JMH refuses to generate code for benchmarks in
+ * the default package, and code in a named package cannot refer to default-package types, so
+ * the benchmarks only ever talk to the DSM through this interface. Each fork loads a single
+ * implementation, so the call is monomorphic and inlined.
+ */
+public interface Target extends AutoCloseable {
+    // Runs the operation on the i-th prepared input and returns something derived from the result
+    long run(int i);
+
+    @Override
+    default void close() {}
+
+    // Creates the named default-package class through its (String...) constructor
+    static Target load(String className, String... params) {
+        try {
+            return (Target) Class.forName(className).getConstructor(String[].class).newInstance((Object) params);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create benchmark target " + className, e);
+        }
+    }
+}
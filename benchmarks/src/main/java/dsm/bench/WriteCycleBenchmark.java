@@ -0,0 +1,45 @@
+package dsm.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A full write: client to primary, replication to both replicas, acks back and the reply to
+ * the client, over the in-process transport. With {@code encoded} every message also goes
+ * through the binary codec, as it would on a real wire.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WriteCycleBenchmark {
+    @Param({"all", "quorum", "primary"})
+    public String ackMode;
+
+    @Param({"direct", "encoded"})
+    public String transport;
+
+    private Target write;
+
+    @State(Scope.Thread)
+    public static class Counter {
+        int i;
+    }
+
+    @Setup
+    public void setUp() {
+        write = Target.load("BenchTargets$WriteCycle", ackMode, transport);
+    }
+
+    @TearDown
+    public void tearDown() {
+        write.close();
+    }
+
+    @Benchmark
+    public long write(Counter counter) {
+        return write.run(counter.i++);
+    }
+}
@@ -0,0 +1,11 @@
+#!/bin/bash
+# run-benchmarks.sh
+# Usage: ./run-benchmarks.sh [JMH options], e.g. ./run-benchmarks.sh CodecBenchmark -p codec=binary
+# Builds the project and the JMH module, then runs the benchmarks (gc profiler on, results in jmh-result.json).
+# The first run needs network access so Maven can fetch JMH and the shade plugin into ~/.m2; after
+# that it can build offline with MVN_FLAGS=-o ./run-benchmarks.sh.
+
+set -e
+mvn -q $MVN_FLAGS install -DskipTests
+mvn -q $MVN_FLAGS -f benchmarks/pom.xml package
+java -jar benchmarks/target/benchmarks.jar "$@"
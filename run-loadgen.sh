@@ -0,0 +1,9 @@
+#!/bin/bash
+# run-loadgen.sh
+# Usage: ./run-loadgen.sh [--local] [replay_file]
+# Drives the cluster at a fixed request rate and reports throughput and latency per operation.
+# Tune with -D options in JAVA_OPTS, e.g. JAVA_OPTS="-Ddsm.load.rate=20000 -Ddsm.load.keys=zipf"
+
+JAR_NAME="target/Distributed_Shared_Memory-1.0-SNAPSHOT.jar"
+
+java $JAVA_OPTS -cp "$JAR_NAME":. LoadGenerator "$@"
@@ -0,0 +1,14 @@
+#!/bin/bash
+# run-local.sh
+# Usage: ./run-local.sh <input_file> [--encode]
+# Runs all nodes and the client in one JVM without RabbitMQ.
+
+JAR_NAME="target/Distributed_Shared_Memory-1.0-SNAPSHOT.jar"
+
+if [ $# -lt 1 ]; then
+  echo "Usage: $0 <input_file> [--encode]"
+  exit 1
+fi
+
+echo "Starting local cluster using input file: $1"
+java -cp "$JAR_NAME":. LocalCluster "$@"
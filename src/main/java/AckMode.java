@@ -0,0 +1,31 @@
+import java.util.Locale;
+
+/**
+ * How many copies of a write the primary waits for before acknowledging it to the client.
+ * The primary counts as one copy; with persistence on, only once its write-ahead log has it.
+ *
+ * <p>Whatever the mode, every write still replicates to every replica, and reads still carry
+ * the sequence number the client last saw, so a replica that has not caught up parks the read
+ * instead of serving stale data. Weaker modes trade durability on failure for latency only.
+ */
+public enum AckMode {
+    // Every replica has the write (the original behaviour)
+    ALL,
+    // A majority of the replication group, primary included, has the write
+    QUORUM,
+    // Only the primary has the write; replication continues in the background
+    PRIMARY;
+
+    // Cluster default, used for requests that do not name a mode
+    public static final AckMode DEFAULT =
+            AckMode.valueOf(System.getProperty("dsm.write.ackMode", "all").toUpperCase(Locale.ROOT));
+
+    // Replica acks needed for a group of the primary plus replicaCount replicas
+    public int requiredReplicaAcks(int replicaCount) {
+        return switch (this) {
+            case ALL -> replicaCount;
+            case QUORUM -> (replicaCount + 1) / 2;
+            case PRIMARY -> 0;
+        };
+    }
+}
@@ -0,0 +1,178 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fixed-layout binary encoding of a {@link DSMMessage}:
+ * <pre>
+ *   byte  version
+ *   byte  type (ordinal)
+ *   int   address (-1 if absent)
+ *   int   value
+ *   long  sequenceNumber
+ *   short replyToQueue length (-1 if absent), followed by its UTF-8 bytes
+ *   long  correlationId (since version 2)
+ *   int[] addresses, int[] values, long[] sequenceNumbers (since version 3),
+ *         each as an int count (-1 if absent) followed by the elements
+ *   long  epoch (since version 4)
+ *   byte  ackMode (ordinal, -1 if absent; since version 5)
+ * </pre>
+ * Frames from older versions are still accepted.
+ * The size of a frame is known up front, so messages are encoded straight into the
+ * caller's buffer. Reply queue names are interned in both directions: encoding reuses the cached
+ * UTF-8 bytes and decoding hands back the same String instance for a queue it
+ * has already seen, so steady-state traffic does not re-encode the names.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    public static final byte VERSION = 5;
+    private static final DSMMessage.Type[] TYPES = DSMMessage.Type.values();
+    private static final AckMode[] ACK_MODES = AckMode.values();
+    private static final int INTERN_SLOTS = 1024; // power of two
+    private static final int MAX_INTERNED_NAMES = 4096;
+
+    private final ConcurrentHashMap<String, byte[]> encodedNames = new ConcurrentHashMap<>();
+    private final InternedName[] decodedNames = new InternedName[INTERN_SLOTS];
+    private JsonMessageCodec json; // only created if a JSON frame shows up
+
+    private record InternedName(byte[] bytes, String name) {}
+
+    @Override
+    public void encode(DSMMessage msg, ByteBuffer out) {
+        out.put(VERSION);
+        out.put((byte) msg.getType().ordinal());
+        out.putInt(msg.getAddress() == null ? -1 : msg.getAddress().getValue());
+        out.putInt(msg.getValue());
+        out.putLong(msg.getSequenceNumber());
+        String replyTo = msg.getReplyToQueue();
+        if (replyTo == null) {
+            out.putShort((short) -1);
+        } else {
+            byte[] name = nameBytes(replyTo);
+            out.putShort((short) name.length);
+            out.put(name);
+        }
+        out.putLong(msg.getCorrelationId());
+        putInts(out, msg.getAddresses());
+        putInts(out, msg.getValues());
+        putLongs(out, msg.getSequenceNumbers());
+        out.putLong(msg.getEpoch());
+        out.put(msg.getAckMode() == null ? -1 : (byte) msg.getAckMode().ordinal());
+    }
+
+    @Override
+    public int encodedSize(DSMMessage msg) {
+        int size = 1 + 1 + 4 + 4 + 8 + 2 + 8 + 4 + 4 + 4 + 8 + 1;
+        if (msg.getReplyToQueue() != null) size += nameBytes(msg.getReplyToQueue()).length;
+        if (msg.getAddresses() != null) size += 4 * msg.getAddresses().length;
+        if (msg.getValues() != null) size += 4 * msg.getValues().length;
+        if (msg.getSequenceNumbers() != null) size += 8 * msg.getSequenceNumbers().length;
+        return size;
+    }
+
+    @Override
+    public DSMMessage decode(ByteBuffer in) {
+        byte version = in.get(in.position());
+        if (version == JsonMessageCodec.MARKER) {
+            return jsonCodec().decode(in);
+        }
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported wire version: " + version);
+        }
+        in.get();
+        DSMMessage.Type type = TYPES[in.get()];
+        int address = in.getInt();
+        int value = in.getInt();
+        long sequenceNumber = in.getLong();
+        String replyTo = readName(in, in.getShort());
+        long correlationId = version >= 2 ? in.getLong() : 0;
+        int[] addresses = version >= 3 ? getInts(in) : null;
+        int[] values = version >= 3 ? getInts(in) : null;
+        long[] sequenceNumbers = version >= 3 ? getLongs(in) : null;
+        long epoch = version >= 4 ? in.getLong() : 0;
+        byte ackMode = version >= 5 ? in.get() : -1;
+        return new DSMMessage(type, address < 0 ? null : new Address(address), value, replyTo,
+                sequenceNumber, correlationId, addresses, values, sequenceNumbers, epoch,
+                ackMode < 0 ? null : ACK_MODES[ackMode]);
+    }
+
+    private static void putInts(ByteBuffer out, int[] array) {
+        if (array == null) {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(array.length);
+        for (int element : array) out.putInt(element);
+    }
+
+    private static void putLongs(ByteBuffer out, long[] array) {
+        if (array == null) {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(array.length);
+        for (long element : array) out.putLong(element);
+    }
+
+    private static int[] getInts(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        int[] array = new int[length];
+        for (int i = 0; i < length; i++) array[i] = in.getInt();
+        return array;
+    }
+
+    private static long[] getLongs(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        long[] array = new long[length];
+        for (int i = 0; i < length; i++) array[i] = in.getLong();
+        return array;
+    }
+
+    private byte[] nameBytes(String name) {
+        byte[] bytes = encodedNames.get(name);
+        if (bytes == null) {
+            bytes = name.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("Queue name too long: " + name.length());
+            }
+            if (encodedNames.size() < MAX_INTERNED_NAMES) {
+                encodedNames.put(name, bytes);
+            }
+        }
+        return bytes;
+    }
+
+    private String readName(ByteBuffer in, int length) {
+        if (length < 0) return null;
+        int start = in.position();
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + in.get(start + i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (INTERN_SLOTS - 1);
+        InternedName cached = decodedNames[slot];
+        if (cached != null && sameBytes(cached.bytes(), in, start, length)) {
+            in.position(start + length);
+            return cached.name();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        String name = new String(bytes, StandardCharsets.UTF_8);
+        decodedNames[slot] = new InternedName(bytes, name);
+        return name;
+    }
+
+    private static boolean sameBytes(byte[] bytes, ByteBuffer in, int start, int length) {
+        if (bytes.length != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != in.get(start + i)) return false;
+        }
+        return true;
+    }
+
+    private JsonMessageCodec jsonCodec() {
+        if (json == null) json = new JsonMessageCodec();
+        return json;
+    }
+}
@@ -1,18 +1,10 @@
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.rabbitmq.client.*;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
 
 public class Client {
-    private static final String CONFIG_REQUEST_QUEUE = "config_request_queue";
-    private static final Map<Integer, Long> addressSequenceNumbers = new HashMap<>();
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
             System.err.println("Usage: java Client <request_file>");
@@ -21,117 +13,125 @@ public class Client {
 
         List<String> lines = Files.readAllLines(Paths.get(args[0]));
 
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost("localhost");
+        System.out.println("Client is processing requests from file: " + args[0]);
+        try (ConfigSubscriber config = ConfigSubscriber.start("client")) {
+            Topology topology = config.awaitTopology();
+            try (MessagingService messaging = MessagingService.fromSystemProperties(null, topology);
+                 DSMClient client = new DSMClient(messaging, topology.toPartitionConfig())) {
+                config.subscribe((next, pushed) -> {
+                    if (client.updateTopology(next.toPartitionConfig())) {
+                        System.err.println("Client moved to topology epoch " + next.getEpoch());
+                    }
+                });
+                runRequests(lines, client);
+            }
+        }
 
-        try (Connection connection = factory.newConnection();
-             Channel channel = connection.createChannel()) {
+        System.out.println("Client finished processing all requests.");
+    }
 
-            // ********** REQUEST CONFIGURATION FROM SERVER **********
-            String configReplyQueue = "client_config_reply_" + UUID.randomUUID();
-            channel.queueDeclare(configReplyQueue, false, false, true, null);
-            System.out.println("Client: Requested config, waiting on " + configReplyQueue);
+    // Replays read, write, cas, add and swap commands through a DSMClient. Requests are pipelined,
+    // but each one waits for the previous request on the same address so the file's semantics are kept.
+    public static void runRequests(List<String> lines, DSMClient client) {
+        Map<Integer, CompletableFuture<?>> lastRequestPerAddress = new HashMap<>();
+        CompletableFuture<?> done = CompletableFuture.completedFuture(null);
 
-            channel.basicPublish("", CONFIG_REQUEST_QUEUE, null, configReplyQueue.getBytes(StandardCharsets.UTF_8));
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
 
-            GetResponse configResponse = null;
-            while (configResponse == null) {
-                configResponse = channel.basicGet(configReplyQueue, true);
-                if (configResponse == null) Thread.sleep(100);
+            String[] tokens = line.split("\\s+");
+            if (tokens.length < 2) {
+                System.err.println("Invalid command: " + line);
+                continue;
             }
 
-            byte[] configBody = configResponse.getBody();
-            ObjectMapper mapper = new ObjectMapper();
-            List<DSMNode> nodes = mapper.readValue(configBody, new TypeReference<List<DSMNode>>() {});
-            List<String> nodeNames = new ArrayList<>();
-            for (DSMNode node : nodes) nodeNames.add(node.getName());
-
-            if (nodeNames.isEmpty()) {
-                System.err.println("No nodes found in configuration.");
-                return;
+            String operation = tokens[0].toLowerCase();
+            int addressValue;
+            try {
+                addressValue = Integer.parseInt(tokens[1]);
+                new Address(addressValue);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid address: " + tokens[1]);
+                continue;
             }
 
-            Random random = new Random();
-            ObjectMapper objectMapper = new ObjectMapper();
-            String targetNode = nodeNames.get(random.nextInt(nodeNames.size()));
+            CompletableFuture<?> previous = lastRequestPerAddress.getOrDefault(addressValue, done);
+            CompletableFuture<?> request;
 
-            System.out.println("Client is processing requests from file: " + args[0]);
+            if (operation.equals("read")) {
+                request = previous.thenCompose(ignored -> {
+                    System.out.println("Sent READ to " + client.getReplicationGroup(addressValue) + " at address " + addressValue);
+                    return client.read(addressValue);
+                }).thenAccept(receivedValue ->
+                        System.out.println("Value at address " + addressValue + ": " + receivedValue));
 
-            for (String line : lines) {
-                line = line.trim();
-                if (line.isEmpty()) continue;
-
-                String[] tokens = line.split("\\s+");
-                if (tokens.length < 2) {
-                    System.err.println("Invalid command: " + line);
+            } else if (operation.equals("write")) {
+                if (tokens.length < 3) {
+                    System.err.println("Write requires value: " + line);
                     continue;
                 }
 
-                String operation = tokens[0].toLowerCase();
-                int addressValue;
+                int value;
                 try {
-                    addressValue = Integer.parseInt(tokens[1]);
+                    value = Integer.parseInt(tokens[2]);
                 } catch (NumberFormatException e) {
-                    System.err.println("Invalid address: " + tokens[1]);
+                    System.err.println("Invalid value: " + tokens[2]);
                     continue;
                 }
 
-                Address address = new Address(addressValue);
-
-
-                if (operation.equals("read")) {
-                    String replyQueue = "client_reply_" + UUID.randomUUID();
-                    channel.queueDeclare(replyQueue, false, false, false, null);
-                    BlockingQueue<String> replyQueueBlocking = new ArrayBlockingQueue<>(1);
-
-                    channel.basicConsume(replyQueue, true, (consumerTag, delivery) -> {
-                        String reply = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                        replyQueueBlocking.add(reply);
-                    }, consumerTag -> {});
-                    long seq = addressSequenceNumbers.getOrDefault(addressValue, 0L);
-                    DSMMessage msg = new DSMMessage(DSMMessage.Type.READ, address, null, replyQueue,seq);
-                    channel.basicPublish("", targetNode, null, objectMapper.writeValueAsBytes(msg));
-                    System.out.println("Sent READ to " + targetNode + " at address " + addressValue);
-
-                    String receivedValue = replyQueueBlocking.take();
-                    System.out.println("Value at address " + addressValue + ": " + receivedValue);
-
-                } else if (operation.equals("write")) {
-                    if (tokens.length < 3) {
-                        System.err.println("Write requires value: " + line);
+                // Optional fourth token overrides the cluster's ack mode: write <address> <value> [all|quorum|primary]
+                AckMode ackMode = null;
+                if (tokens.length > 3) {
+                    try {
+                        ackMode = AckMode.valueOf(tokens[3].toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Invalid ack mode: " + tokens[3]);
                         continue;
                     }
-
-                    String value = tokens[2];
-
-                    String writeReplyQueue = "client_write_reply_" + UUID.randomUUID();
-                    channel.queueDeclare(writeReplyQueue, false, false, false, null);
-
-                    BlockingQueue<String> ackQueue = new ArrayBlockingQueue<>(1);
-
-
-                    channel.basicConsume(writeReplyQueue, true, (consumerTag, delivery) -> {
-                        String ack = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                        ackQueue.add(ack);
-                    }, consumerTag -> {});
-
-                    long seq = addressSequenceNumbers.getOrDefault(addressValue, 0L) + 1;
-                    DSMMessage msg = new DSMMessage(DSMMessage.Type.WRITE, address, value, writeReplyQueue, seq);
-                    channel.basicPublish("", targetNode, null, objectMapper.writeValueAsBytes(msg));
-                    System.out.println("Sent WRITE to " + targetNode + ": address " + addressValue + ", value " + value);
-
-                    String ack = ackQueue.take();
-                    addressSequenceNumbers.put(addressValue, seq);
-                    System.out.println("WRITE confirmed for address " + addressValue + ", ack: " + ack);
-
-                } else {
-                    System.err.println("Unknown operation: " + operation);
                 }
-            }
+                AckMode mode = ackMode;
+
+                request = previous.thenCompose(ignored -> {
+                    System.out.println("Sent WRITE to " + client.getPrimary(addressValue) + ": address " + addressValue + ", value " + value);
+                    return client.write(addressValue, value, mode);
+                }).thenRun(() -> System.out.println("WRITE confirmed for address " + addressValue));
+
+            } else if (operation.equals("cas") || operation.equals("add") || operation.equals("swap")) {
+                // cas <address> <expected> <new>, add <address> <delta>, swap <address> <value>
+                int operands = operation.equals("cas") ? 2 : 1;
+                if (tokens.length < 2 + operands) {
+                    System.err.println(operation + " requires " + operands + " value(s): " + line);
+                    continue;
+                }
+                int first;
+                int second;
+                try {
+                    first = Integer.parseInt(tokens[2]);
+                    second = operands == 2 ? Integer.parseInt(tokens[3]) : 0;
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid value: " + line);
+                    continue;
+                }
 
-            System.out.println("Client finished processing all requests.");
+                request = previous.thenCompose(ignored -> {
+                    System.out.println("Sent " + operation.toUpperCase(Locale.ROOT) + " to " + client.getPrimary(addressValue)
+                            + ": address " + addressValue);
+                    return switch (operation) {
+                        case "cas" -> client.compareAndSwap(addressValue, first, second);
+                        case "add" -> client.fetchAndAdd(addressValue, first);
+                        default -> client.swap(addressValue, first);
+                    };
+                }).thenAccept(oldValue ->
+                        System.out.println("Previous value at address " + addressValue + ": " + oldValue));
+
+            } else {
+                System.err.println("Unknown operation: " + operation);
+                continue;
+            }
+            lastRequestPerAddress.put(addressValue, request);
         }
-    }
-}
-
 
+        CompletableFuture.allOf(lastRequestPerAddress.values().toArray(new CompletableFuture<?>[0])).join();
+    }
+}
\ No newline at end of file
@@ -1,28 +1,95 @@
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.*;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ConfigServer {
-    private static final String REQUEST_QUEUE = "config_request_queue";
+    public static final String REQUEST_QUEUE = "config_request_queue";
+    // Fanout exchange every new epoch is pushed to; see ConfigSubscriber
+    public static final String UPDATES_EXCHANGE = "config_updates";
 
-    public static void main(String[] args) throws Exception {
-        // 1. Create the config
-        int totalAddresses = 1000;
-        int replicationFactor = 2;
-        List<String> nodeNames = List.of("NodeA", "NodeA1", "NodeA2",
-                "NodeB", "NodeB1", "NodeB2");
+    // The cluster topology served to nodes and clients. dsm.cluster.nodes lists the nodes group by
+    // group; groups past dsm.partitions.activeGroups start empty and take load on "rebalance".
+    public static PartitionConfig createPartitionConfig() {
+        return createPartitionConfig(Integer.getInteger("dsm.cluster.addresses", 1000),
+                Integer.getInteger("dsm.cluster.replicationFactor", 2),
+                System.getProperty("dsm.cluster.nodes", "NodeA,NodeA1,NodeA2,NodeB,NodeB1,NodeB2"));
+    }
+
+    public static PartitionConfig createPartitionConfig(int totalAddresses, int replicationFactor, String nodes) {
+        List<String> nodeNames = Arrays.asList(nodes.split(","));
+        return new PartitionConfig(totalAddresses, replicationFactor, nodeNames);
+    }
+
+    // Sends config's routing table to every node. With migrate set, nodes hand off the partitions
+    // that change owner; otherwise they just adopt the table (for nodes that missed an epoch).
+    public static void publishTopology(MessagingService messaging, PartitionConfig config, boolean migrate) {
+        DSMMessage topology = DSMMessage.topology(config, migrate);
+        for (String node : config.getNodeNames()) {
+            try {
+                messaging.send(node, topology);
+            } catch (IOException e) {
+                System.err.println("Failed to send topology epoch " + config.getEpoch() + " to " + node + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Number of virtual partitions whose owner differs between two configs
+    public static int movedPartitions(PartitionConfig before, PartitionConfig after) {
+        int moved = 0;
+        for (int partitionID = 0; partitionID < before.getVirtualPartitionCount(); partitionID++) {
+            if (before.getGroupOfPartition(partitionID) != after.getGroupOfPartition(partitionID)) moved++;
+        }
+        return moved;
+    }
+
+    // Writes aside and moves into place, so a crash never leaves half a topology behind
+    private static void save(Topology topology, Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, topology.toPrettyJson());
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
 
-        PartitionConfig partitionConfig = new PartitionConfig(totalAddresses, replicationFactor, nodeNames);
-        List<DSMNode> dsmNodes = DSMNodeFactory.createNodesFrom(partitionConfig);
+    // Usage: java ConfigServer [--nodes A,A1,...] [--addresses N] [--replicationFactor R] [topology.json]
+    // An existing topology file is loaded as is; otherwise the topology is built from the options
+    // (defaulting to the dsm.cluster.* properties) and, if a file was named, saved there. Every new
+    // epoch is written back to the file, so a restarted server carries on where it left off.
+    public static void main(String[] args) throws Exception {
+        int totalAddresses = Integer.getInteger("dsm.cluster.addresses", 1000);
+        int replicationFactor = Integer.getInteger("dsm.cluster.replicationFactor", 2);
+        String nodes = System.getProperty("dsm.cluster.nodes", "NodeA,NodeA1,NodeA2,NodeB,NodeB1,NodeB2");
+        Path topologyFile = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--nodes" -> nodes = args[++i];
+                case "--addresses" -> totalAddresses = Integer.parseInt(args[++i]);
+                case "--replicationFactor" -> replicationFactor = Integer.parseInt(args[++i]);
+                default -> topologyFile = Path.of(args[i]);
+            }
+        }
 
-        ObjectMapper mapper = new ObjectMapper();
-        byte[] configData = mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(dsmNodes);
+        // 1. Load or create the config
+        Topology initial;
+        if (topologyFile != null && Files.exists(topologyFile)) {
+            initial = Topology.fromJson(Files.readAllBytes(topologyFile));
+            System.out.println("Loaded topology epoch " + initial.getEpoch() + " from " + topologyFile);
+        } else {
+            initial = Topology.of(createPartitionConfig(totalAddresses, replicationFactor, nodes));
+            if (topologyFile != null) save(initial, topologyFile);
+        }
+        AtomicReference<Topology> current = new AtomicReference<>(initial);
+        AtomicReference<byte[]> currentJson = new AtomicReference<>(initial.toJson());
 
         // -- Write the config data to disk for debugging --
         Path debugFile = Path.of("config_debug.json");
-        Files.write(debugFile, configData);
+        Files.write(debugFile, initial.toPrettyJson());
         System.out.println("Debug: wrote JSON config to " + debugFile.toAbsolutePath());
 
         // 2. Set up RabbitMQ
@@ -30,27 +97,49 @@ public class ConfigServer {
         factory.setHost("localhost");
 
         try (Connection connection = factory.newConnection();
-             Channel channel = connection.createChannel()) {
+             Channel channel = connection.createChannel();
+             MessagingService messaging = MessagingService.fromSystemProperties(null, initial)) {
 
             channel.queueDeclare(REQUEST_QUEUE, false, false, false, null);
+            channel.exchangeDeclare(UPDATES_EXCHANGE, BuiltinExchangeType.FANOUT);
             System.out.println("ConfigServer is waiting for config requests...");
 
             DeliverCallback callback = (consumerTag, delivery) -> {
-                // Get reply queue name from message body
-                String replyQueue = new String(delivery.getBody());
+                // Get reply queue name from message body; the requester has declared it
+                String replyQueue = new String(delivery.getBody(), StandardCharsets.UTF_8);
 
-                // Send config to that queue
-                channel.queueDeclare(replyQueue, false, false, true, null);
-                channel.basicPublish("", replyQueue, null, configData);
-                System.out.println("Sent config to " + replyQueue);
+                // Send the current topology to that queue; it carries the latest routing table and
+                // epoch, so a (re)starting node needs no catch-up
+                synchronized (channel) {
+                    channel.basicPublish("", replyQueue, null, currentJson.get());
+                }
+                System.out.println("Sent epoch " + current.get().getEpoch() + " config to " + replyQueue);
             };
 
             channel.basicConsume(REQUEST_QUEUE, true, callback, consumerTag -> {});
+            System.out.println("Type 'rebalance' to spread partitions over every group.");
+            BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+            String command;
+            while ((command = console.readLine()) != null) {
+                if (command.trim().equals("rebalance")) {
+                    PartitionConfig before = current.get().toPartitionConfig();
+                    PartitionConfig after = before.rebalanced();
+                    Topology next = current.get().withConfig(after);
+                    if (topologyFile != null) save(next, topologyFile);
+                    current.set(next);
+                    currentJson.set(next.toJson());
+                    // Nodes migrate on whichever of the two reaches them first; the other is a no-op
+                    publishTopology(messaging, after, true);
+                    synchronized (channel) {
+                        channel.basicPublish(UPDATES_EXCHANGE, "", null, currentJson.get());
+                    }
+                    System.out.println("Published epoch " + after.getEpoch() + ", moving "
+                            + movedPartitions(before, after) + " partitions");
+                }
+            }
             while (true) {
                 Thread.sleep(1000); // keep the server alive
             }
         }
     }
 }
-
-
@@ -0,0 +1,156 @@
+import com.rabbitmq.client.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A node's or client's view of the cluster topology. It starts from the copy cached on local
+ * disk by the previous run, if any, then asks the ConfigServer for the current one and keeps
+ * listening on the ConfigServer's fanout exchange, where every new epoch is pushed. Only newer
+ * epochs are taken; each one is written back to the cache and handed to the listeners.
+ *
+ * <p>With a cached topology, startup never waits for the ConfigServer, and it even goes ahead
+ * without one (without updates until restarted) if RabbitMQ is unreachable.
+ */
+public class ConfigSubscriber implements AutoCloseable {
+    public static final Path CACHE_DIRECTORY = Path.of(System.getProperty("dsm.config.cacheDir", "config-cache"));
+
+    public interface Listener {
+        // pushed: the ConfigServer announced a new epoch live, rather than this being the initial fetch
+        void onTopology(Topology topology, boolean pushed);
+    }
+
+    private final String name;
+    private final Path cacheFile;
+    private final CompletableFuture<Topology> first = new CompletableFuture<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private Topology current; // guarded by this
+    private Connection connection;
+
+    private ConfigSubscriber(String name) {
+        this.name = name;
+        this.cacheFile = CACHE_DIRECTORY.resolve(name + ".json");
+    }
+
+    // Loads the cached topology of name and subscribes to the ConfigServer
+    public static ConfigSubscriber start(String name) throws IOException, TimeoutException {
+        ConfigSubscriber subscriber = new ConfigSubscriber(name);
+        subscriber.loadCache();
+        try {
+            subscriber.connect();
+        } catch (IOException | TimeoutException e) {
+            if (subscriber.current() == null) throw e;
+            System.err.println("[" + name + "] Config server unreachable, running on cached topology epoch "
+                    + subscriber.current().getEpoch() + ": " + e.getMessage());
+        }
+        return subscriber;
+    }
+
+    private void loadCache() {
+        if (!Files.exists(cacheFile)) return;
+        try {
+            Topology cached = Topology.fromJson(Files.readAllBytes(cacheFile));
+            synchronized (this) {
+                current = cached;
+            }
+            first.complete(cached);
+            System.out.println("[" + name + "] Using cached topology epoch " + cached.getEpoch());
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("[" + name + "] Ignoring unreadable topology cache " + cacheFile + ": " + e.getMessage());
+        }
+    }
+
+    private void connect() throws IOException, TimeoutException {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost("localhost");
+        connection = factory.newConnection();
+        Channel channel = connection.createChannel();
+
+        // Updates: a private queue bound to the fanout exchange, so every subscriber gets every epoch
+        channel.exchangeDeclare(ConfigServer.UPDATES_EXCHANGE, BuiltinExchangeType.FANOUT);
+        String updates = channel.queueDeclare().getQueue();
+        channel.queueBind(updates, ConfigServer.UPDATES_EXCHANGE, "");
+        channel.basicConsume(updates, true, (tag, delivery) -> receive(delivery.getBody(), true), tag -> {});
+
+        // The current topology, answered on a reply queue of our own; bound first so no epoch
+        // published in between is missed
+        String replyQueue = channel.queueDeclare().getQueue();
+        channel.basicConsume(replyQueue, true, (tag, delivery) -> receive(delivery.getBody(), false), tag -> {});
+        channel.basicPublish("", ConfigServer.REQUEST_QUEUE, null, replyQueue.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void receive(byte[] body, boolean pushed) {
+        Topology topology;
+        try {
+            topology = Topology.fromJson(body);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("[" + name + "] Ignoring unreadable topology: " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            if (current != null && topology.getEpoch() <= current.getEpoch()) {
+                if (topology.getEpoch() < current.getEpoch()) {
+                    System.err.println("[" + name + "] Ignoring topology epoch " + topology.getEpoch()
+                            + ", already at " + current.getEpoch());
+                }
+                return;
+            }
+            current = topology;
+            writeCache(body);
+        }
+        first.complete(topology);
+        for (Listener listener : listeners) listener.onTopology(topology, pushed);
+    }
+
+    // Written aside and moved into place, so a crash never leaves half a topology behind. Every client
+    // process shares one cache file, so each writes its own temp file and the last complete move wins.
+    private void writeCache(byte[] json) {
+        Path temp = null;
+        try {
+            Files.createDirectories(CACHE_DIRECTORY);
+            temp = Files.createTempFile(CACHE_DIRECTORY, cacheFile.getFileName().toString(), ".tmp");
+            Files.write(temp, json);
+            Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[" + name + "] Failed to cache topology: " + e.getMessage());
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // The cached topology if there was one, otherwise blocks until the ConfigServer's arrives
+    public Topology awaitTopology() throws InterruptedException {
+        try {
+            return first.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public synchronized Topology current() {
+        return current;
+    }
+
+    // Calls listener with every newer epoch from now on, starting with the current one
+    public void subscribe(Listener listener) {
+        listeners.add(listener);
+        Topology now = current();
+        if (now != null) listener.onTopology(now, false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (connection != null && connection.isOpen()) connection.close();
+    }
+}
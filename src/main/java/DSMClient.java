@@ -0,0 +1,614 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous client for the DSM. All requests share one long-lived reply queue and
+ * are matched to their replies by correlation id, so many operations can be in flight
+ * over a single connection. At most {@code maxInFlight} requests are outstanding at a
+ * time; further requests wait in a local queue and are sent as replies come back.
+ *
+ * Within that, the window adapts (AIMD): it grows by one request per window's worth of replies
+ * and halves when a node answers BUSY or, with {@code dsm.client.latencyTargetMillis} set, when
+ * a reply takes longer than the target, at most once per window. A BUSY request is sent again
+ * after a backoff, up to {@code dsm.client.maxBusyRetries} times.
+ *
+ * Requests are routed with the client's own copy of the {@link PartitionConfig}: writes go
+ * straight to the owning group's primary and reads to one of its replicas, so no node has to
+ * forward them. Multi-address operations send one sub-request to each owning group in parallel
+ * and merge the results. Which replica serves a read is up to the {@link ReplicaSelector}, which
+ * sees every read's latency and the sequence number it was served at. When a node answers
+ * WRONG_OWNER, the client adopts the routing table from the reply and retries the operation, up
+ * to {@code dsm.client.maxRedirects} times.
+ *
+ * Operations on the same address are not ordered against each other while in flight;
+ * callers that need ordering chain on the returned futures.
+ */
+public class DSMClient implements AutoCloseable {
+    public static final int DEFAULT_MAX_IN_FLIGHT = Integer.getInteger("dsm.client.maxInFlight", 256);
+    public static final int MAX_REDIRECTS = Integer.getInteger("dsm.client.maxRedirects", 8);
+    // Wait between retries when a redirect did not bring a newer table (a handoff still in progress)
+    private static final long REDIRECT_BACKOFF_MILLIS = 2;
+    public static final int MAX_BUSY_RETRIES = Integer.getInteger("dsm.client.maxBusyRetries", 10);
+    // First wait before resending a BUSY request; doubles with every retry
+    private static final long BUSY_BACKOFF_MILLIS = Long.getLong("dsm.client.busyBackoffMillis", 1);
+    // Replies slower than this shrink the window like BUSY does; 0 reacts to BUSY only
+    private static final long LATENCY_TARGET_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("dsm.client.latencyTargetMillis", 0));
+    private static final double MIN_WINDOW = 1;
+
+    private final MessagingService messaging;
+    private volatile PartitionConfig partitionConfig; // replaced when a node reports a newer epoch
+    private final String replyQueue;
+    private final int maxInFlight;
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+    private final Map<Long, Call> inFlight = new ConcurrentHashMap<>();
+    private final ReplicaSelector replicaSelector;
+    // Highest write sequence acknowledged per address, so reads observe our own writes
+    private final Map<Integer, Long> addressSequenceNumbers = new ConcurrentHashMap<>();
+    // Highest write sequence acknowledged per replication group, for range reads
+    private final Map<Integer, Long> groupSequenceNumbers = new ConcurrentHashMap<>();
+    private final Tracer tracer;
+    private final int clientId; // how trace records name this client
+
+    private record Outgoing(String target, DSMMessage msg) {}
+
+    // A request waiting for its reply; replica is set for reads so the selector hears how it went
+    private static final class Call {
+        final CompletableFuture<DSMMessage> future = new CompletableFuture<>();
+        final String replica;
+        volatile long sentNanos;
+        Outgoing outgoing; // kept to resend it after BUSY
+        int busyRetries;
+
+        Call(String replica) {
+            this.replica = replica;
+        }
+    }
+
+    private final Deque<Outgoing> waiting = new ArrayDeque<>(); // guarded by this
+    private int outstanding; // guarded by this
+    private double window; // current AIMD limit on outstanding, guarded by this
+    private long lastDecreaseNanos; // requests sent before this do not shrink the window again, guarded by this
+    private final LongAdder busyReplies = new LongAdder();
+    private volatile boolean closed;
+
+    public DSMClient(MessagingService messaging, PartitionConfig partitionConfig) throws IOException {
+        this(messaging, partitionConfig, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public DSMClient(MessagingService messaging, PartitionConfig partitionConfig, int maxInFlight) throws IOException {
+        this(messaging, partitionConfig, maxInFlight, ReplicaSelector.fromSystemProperties());
+    }
+
+    public DSMClient(MessagingService messaging, PartitionConfig partitionConfig, int maxInFlight,
+                     ReplicaSelector replicaSelector) throws IOException {
+        List<String> nodeNames = partitionConfig.getNodeNames();
+        if (nodeNames.isEmpty()) {
+            throw new IllegalArgumentException("No nodes to send requests to");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.messaging = messaging;
+        this.partitionConfig = partitionConfig;
+        this.replyQueue = "client_reply_" + UUID.randomUUID();
+        this.maxInFlight = maxInFlight;
+        this.window = maxInFlight;
+        this.replicaSelector = replicaSelector;
+        this.tracer = Tracer.forNode(replyQueue);
+        this.clientId = Tracer.clientId(replyQueue);
+        messaging.startReplyListener(replyQueue, this::onReply);
+    }
+
+    public CompletableFuture<Integer> read(int address) {
+        return withRedirects(() -> readOnce(address), 0);
+    }
+
+    public CompletableFuture<Void> write(int address, int value) {
+        return write(address, value, null);
+    }
+
+    // Write acknowledged according to ackMode; null leaves it to the cluster's dsm.write.ackMode
+    public CompletableFuture<Void> write(int address, int value, AckMode ackMode) {
+        return withRedirects(() -> writeOnce(address, value, ackMode), 0);
+    }
+
+    // Sets address to newValue if it holds expected; completes with the value it held, so the
+    // swap happened iff that equals expected
+    public CompletableFuture<Integer> compareAndSwap(int address, int expected, int newValue) {
+        return compareAndSwap(address, expected, newValue, null);
+    }
+
+    public CompletableFuture<Integer> compareAndSwap(int address, int expected, int newValue, AckMode ackMode) {
+        return withRedirects(() -> atomicOnce(DSMMessage.Type.CAS, address, expected, new int[] {newValue}, ackMode), 0);
+    }
+
+    // Adds delta to address (wrapping on overflow); completes with the value before the addition
+    public CompletableFuture<Integer> fetchAndAdd(int address, int delta) {
+        return fetchAndAdd(address, delta, null);
+    }
+
+    public CompletableFuture<Integer> fetchAndAdd(int address, int delta, AckMode ackMode) {
+        return withRedirects(() -> atomicOnce(DSMMessage.Type.FETCH_ADD, address, delta, null, ackMode), 0);
+    }
+
+    // Stores value at address; completes with the value it replaced
+    public CompletableFuture<Integer> swap(int address, int value) {
+        return swap(address, value, null);
+    }
+
+    public CompletableFuture<Integer> swap(int address, int value, AckMode ackMode) {
+        return withRedirects(() -> atomicOnce(DSMMessage.Type.SWAP, address, value, null, ackMode), 0);
+    }
+
+    // Reads any set of addresses; values come back in the order of the addresses
+    public CompletableFuture<int[]> multiGet(int... addresses) {
+        return withRedirects(() -> multiGetOnce(addresses), 0);
+    }
+
+    // Writes values[i] to addresses[i]; each group applies and replicates its share as one unit
+    public CompletableFuture<Void> multiSet(int[] addresses, int[] values) {
+        return multiSet(addresses, values, null);
+    }
+
+    public CompletableFuture<Void> multiSet(int[] addresses, int[] values, AckMode ackMode) {
+        if (addresses.length != values.length) {
+            throw new IllegalArgumentException("Got " + addresses.length + " addresses but " + values.length + " values");
+        }
+        return withRedirects(() -> multiSetOnce(addresses, values, ackMode), 0);
+    }
+
+    // Reads addresses from the nodes' version history, each group's share as of a single sequence
+    // number of that group, without waiting behind writes. Groups have their own sequence numbers,
+    // so shares from different groups are not aligned with each other. Needs dsm.mvcc.maxVersions
+    // on the nodes; fails with SnapshotTooOldException if a node no longer has the versions.
+    public CompletableFuture<int[]> snapshotRead(int... addresses) {
+        return withRedirects(() -> snapshotReadOnce(addresses), 0);
+    }
+
+    // Same for the contiguous range [start, end)
+    public CompletableFuture<int[]> snapshotReadRange(int start, int end) {
+        checkRange(start, end);
+        return withRedirects(() -> readRangeOnce(DSMMessage.Type.SNAPSHOT_READ, start, end), 0);
+    }
+
+    // Reads the contiguous range [start, end)
+    public CompletableFuture<int[]> readRange(int start, int end) {
+        checkRange(start, end);
+        return withRedirects(() -> readRangeOnce(DSMMessage.Type.RANGE_READ, start, end), 0);
+    }
+
+    // Writes values to the contiguous range starting at start
+    public CompletableFuture<Void> writeRange(int start, int[] values) {
+        return writeRange(start, values, null);
+    }
+
+    public CompletableFuture<Void> writeRange(int start, int[] values, AckMode ackMode) {
+        checkRange(start, start + values.length);
+        return withRedirects(() -> writeRangeOnce(start, values, ackMode), 0);
+    }
+
+    private CompletableFuture<Integer> readOnce(int address) {
+        PartitionConfig config = partitionConfig;
+        long seq = addressSequenceNumbers.getOrDefault(address, 0L);
+        DSMMessage msg = new DSMMessage(DSMMessage.Type.READ, new Address(address), 0, replyQueue, seq);
+        return read(readTarget(config, config.getGroupId(address), seq), msg).thenApply(DSMMessage::getValue);
+    }
+
+    private CompletableFuture<Void> writeOnce(int address, int value, AckMode ackMode) {
+        PartitionConfig config = partitionConfig;
+        DSMMessage msg = new DSMMessage(DSMMessage.Type.WRITE, new Address(address), value, replyQueue, 0, 0,
+                null, null, null, 0, ackMode);
+        return request(writeTarget(config, config.getGroupId(address)), msg)
+                .thenAccept(reply -> recordWrite(address, reply.getSequenceNumber()));
+    }
+
+    // One round trip to the primary, which reads and writes the word atomically
+    private CompletableFuture<Integer> atomicOnce(DSMMessage.Type type, int address, int value, int[] values,
+                                                  AckMode ackMode) {
+        PartitionConfig config = partitionConfig;
+        DSMMessage msg = new DSMMessage(type, new Address(address), value, replyQueue, 0, 0,
+                null, values, null, 0, ackMode);
+        return request(writeTarget(config, config.getGroupId(address)), msg).thenApply(reply -> {
+            recordWrite(address, reply.getSequenceNumber());
+            return reply.getValue();
+        });
+    }
+
+    private CompletableFuture<int[]> multiGetOnce(int[] addresses) {
+        PartitionConfig config = partitionConfig;
+        int[] result = new int[addresses.length];
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (Map.Entry<Integer, List<Integer>> entry : splitByGroup(config, addresses).entrySet()) {
+            List<Integer> indexes = entry.getValue();
+            int[] subAddresses = new int[indexes.size()];
+            long seq = 0;
+            for (int i = 0; i < subAddresses.length; i++) {
+                subAddresses[i] = addresses[indexes.get(i)];
+                seq = Math.max(seq, addressSequenceNumbers.getOrDefault(subAddresses[i], 0L));
+            }
+            DSMMessage msg = new DSMMessage(DSMMessage.Type.MGET, new Address(subAddresses[0]), 0, replyQueue,
+                    seq, 0, subAddresses, null, null);
+            parts.add(read(readTarget(config, entry.getKey(), seq), msg).thenAccept(reply -> {
+                int[] values = reply.getValues();
+                for (int i = 0; i < values.length; i++) result[indexes.get(i)] = values[i];
+            }));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> result);
+    }
+
+    private CompletableFuture<Void> multiSetOnce(int[] addresses, int[] values, AckMode ackMode) {
+        PartitionConfig config = partitionConfig;
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (Map.Entry<Integer, List<Integer>> entry : splitByGroup(config, addresses).entrySet()) {
+            List<Integer> indexes = entry.getValue();
+            int[] subAddresses = new int[indexes.size()];
+            int[] subValues = new int[indexes.size()];
+            for (int i = 0; i < subAddresses.length; i++) {
+                subAddresses[i] = addresses[indexes.get(i)];
+                subValues[i] = values[indexes.get(i)];
+            }
+            DSMMessage msg = new DSMMessage(DSMMessage.Type.MSET, new Address(subAddresses[0]), 0, replyQueue,
+                    0, 0, subAddresses, subValues, null, 0, ackMode);
+            parts.add(request(writeTarget(config, entry.getKey()), msg).thenAccept(reply -> {
+                for (int address : subAddresses) {
+                    recordWrite(address, reply.getSequenceNumber());
+                }
+            }));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // Like multiGetOnce; each group picks the snapshot, at least what we have written there
+    private CompletableFuture<int[]> snapshotReadOnce(int[] addresses) {
+        PartitionConfig config = partitionConfig;
+        int[] result = new int[addresses.length];
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (Map.Entry<Integer, List<Integer>> entry : splitByGroup(config, addresses).entrySet()) {
+            List<Integer> indexes = entry.getValue();
+            int[] subAddresses = new int[indexes.size()];
+            for (int i = 0; i < subAddresses.length; i++) subAddresses[i] = addresses[indexes.get(i)];
+            long seq = groupSequenceNumbers.getOrDefault(entry.getKey(), 0L);
+            DSMMessage msg = new DSMMessage(DSMMessage.Type.SNAPSHOT_READ, new Address(subAddresses[0]), 0, replyQueue,
+                    seq, 0, subAddresses, null, null);
+            parts.add(read(readTarget(config, entry.getKey(), seq), msg).thenAccept(reply -> {
+                int[] values = reply.getValues();
+                for (int i = 0; i < values.length; i++) result[indexes.get(i)] = values[i];
+            }));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> result);
+    }
+
+    // RANGE_READ, or SNAPSHOT_READ in its range layout
+    private CompletableFuture<int[]> readRangeOnce(DSMMessage.Type type, int start, int end) {
+        PartitionConfig config = partitionConfig;
+        int[] result = new int[end - start];
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (int from = start; from < end; ) {
+            int groupID = config.getGroupId(from);
+            int to = Math.min(end, config.getGroupRunEnd(from) + 1);
+            int offset = from - start;
+            long seq = groupSequenceNumbers.getOrDefault(groupID, 0L);
+            DSMMessage msg = new DSMMessage(type, new Address(from), to, replyQueue, seq);
+            parts.add(read(readTarget(config, groupID, seq), msg).thenAccept(reply ->
+                    System.arraycopy(reply.getValues(), 0, result, offset, reply.getValues().length)));
+            from = to;
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> result);
+    }
+
+    private CompletableFuture<Void> writeRangeOnce(int start, int[] values, AckMode ackMode) {
+        PartitionConfig config = partitionConfig;
+        int end = start + values.length;
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (int from = start; from < end; ) {
+            int groupID = config.getGroupId(from);
+            int to = Math.min(end, config.getGroupRunEnd(from) + 1);
+            int first = from;
+            int last = to;
+            DSMMessage msg = new DSMMessage(DSMMessage.Type.RANGE_WRITE, new Address(from), 0, replyQueue, 0, 0,
+                    null, Arrays.copyOfRange(values, from - start, to - start), null, 0, ackMode);
+            parts.add(request(writeTarget(config, groupID), msg).thenAccept(reply -> {
+                for (int address = first; address < last; address++) {
+                    recordWrite(address, reply.getSequenceNumber());
+                }
+            }));
+            from = to;
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]));
+    }
+
+    public String getReplyQueue() { return replyQueue; }
+    public PartitionConfig getPartitionConfig() { return partitionConfig; }
+
+    // Node that writes to address are sent to
+    public String getPrimary(int address) {
+        PartitionConfig config = partitionConfig;
+        return writeTarget(config, config.getGroupId(address));
+    }
+
+    // Nodes that may serve a read of address
+    public List<String> getReplicationGroup(int address) {
+        return partitionConfig.getReplicationGroup(new Address(address));
+    }
+
+    // Requests that have been sent but not answered yet
+    public int getInFlightCount() { return inFlight.size(); }
+
+    // Groups address indexes by the replication group that owns them
+    private static Map<Integer, List<Integer>> splitByGroup(PartitionConfig config, int[] addresses) {
+        Map<Integer, List<Integer>> byGroup = new HashMap<>();
+        for (int i = 0; i < addresses.length; i++) {
+            byGroup.computeIfAbsent(config.getGroupId(addresses[i]), g -> new ArrayList<>()).add(i);
+        }
+        return byGroup;
+    }
+
+    private void checkRange(int start, int end) {
+        if (start < 0 || end < start || end > partitionConfig.getTotalAddresses()) {
+            throw new IllegalArgumentException("Invalid range [" + start + ", " + end + ")");
+        }
+    }
+
+    private void recordWrite(int address, long sequenceNumber) {
+        addressSequenceNumbers.merge(address, sequenceNumber, Math::max);
+        groupSequenceNumbers.merge(partitionConfig.getGroupId(address), sequenceNumber, Math::max);
+    }
+
+    private static String writeTarget(PartitionConfig config, int groupID) {
+        return config.getGroup(groupID).get(0);
+    }
+
+    // Reads go to one of the group's replicas when it has any, like forwarded reads in DSMNode
+    private String readTarget(PartitionConfig config, int groupID, long requiredSequence) {
+        List<String> group = config.getGroup(groupID);
+        if (group.size() == 1) return group.get(0);
+        return replicaSelector.select(group.subList(1, group.size()), requiredSequence);
+    }
+
+    // A node no longer keeps the versions a snapshot read needs, or keeps none at all
+    public static final class SnapshotTooOldException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        SnapshotTooOldException(String message) {
+            super(message);
+        }
+    }
+
+    // Nodes kept answering BUSY until the retries ran out
+    public static final class NodeBusyException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        NodeBusyException(String message) {
+            super(message);
+        }
+    }
+
+    // A node reported that an attempt was routed by an out-of-date table
+    private static final class WrongOwnerException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+        private final boolean refreshed; // the reply moved us to a newer epoch
+
+        WrongOwnerException(String message, boolean refreshed) {
+            super(message);
+            this.refreshed = refreshed;
+        }
+    }
+
+    // Runs attempt, and runs it again with the refreshed table each time a node answers WRONG_OWNER.
+    private <T> CompletableFuture<T> withRedirects(Supplier<CompletableFuture<T>> attempt, int redirects) {
+        return attempt.get().exceptionallyCompose(error -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (!(cause instanceof WrongOwnerException wrongOwner) || redirects >= MAX_REDIRECTS || closed) {
+                return CompletableFuture.failedFuture(cause);
+            }
+            if (wrongOwner.refreshed) {
+                return withRedirects(attempt, redirects + 1);
+            }
+            // Same epoch: a partition is mid-handoff, give the cutover a moment
+            return CompletableFuture.supplyAsync(() -> null,
+                            CompletableFuture.delayedExecutor(REDIRECT_BACKOFF_MILLIS * (redirects + 1), TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> withRedirects(attempt, redirects + 1));
+        });
+    }
+
+    // Adopts the routing table a node sent along with WRONG_OWNER if it is newer than ours
+    private synchronized boolean refreshTopology(DSMMessage wrongOwner) {
+        PartitionConfig current = partitionConfig;
+        if (wrongOwner.getSequenceNumber() <= current.getEpoch() || wrongOwner.getValues() == null) return false;
+        partitionConfig = current.withRoutingTable(wrongOwner.getValues(), wrongOwner.getSequenceNumber());
+        return true;
+    }
+
+    // Adopts a config pushed by the ConfigServer if it is newer than ours, saving the redirects
+    public synchronized boolean updateTopology(PartitionConfig config) {
+        if (config.getEpoch() <= partitionConfig.getEpoch()) return false;
+        partitionConfig = config;
+        return true;
+    }
+
+    private CompletableFuture<DSMMessage> request(String target, DSMMessage request) {
+        return request(target, request, null);
+    }
+
+    // A request whose outcome is reported to the replica selector
+    private CompletableFuture<DSMMessage> read(String target, DSMMessage request) {
+        return request(target, request, target);
+    }
+
+    private CompletableFuture<DSMMessage> request(String target, DSMMessage request, String replica) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Client is closed"));
+        }
+        long correlationId = nextCorrelationId.incrementAndGet();
+        Call call = new Call(replica);
+        CompletableFuture<DSMMessage> future = call.future;
+        inFlight.put(correlationId, call);
+        DSMMessage msg = new DSMMessage(request.getType(), request.getAddress(), request.getValue(),
+                request.getReplyToQueue(), request.getSequenceNumber(), correlationId,
+                request.getAddresses(), request.getValues(), request.getSequenceNumbers(), partitionConfig.getEpoch(),
+                request.getAckMode());
+        Outgoing outgoing = new Outgoing(target, msg);
+        call.outgoing = outgoing;
+        synchronized (this) {
+            if (outstanding >= (int) window) {
+                waiting.add(outgoing);
+                return future;
+            }
+            outstanding++;
+        }
+        send(outgoing);
+        return future;
+    }
+
+    private void send(Outgoing outgoing) {
+        DSMMessage msg = outgoing.msg();
+        Call call = inFlight.get(msg.getCorrelationId());
+        if (call == null) return; // closed while waiting for a slot
+        call.sentNanos = System.nanoTime();
+        if (call.replica != null) replicaSelector.onSend(call.replica);
+        tracer.record(Tracer.Event.CLIENT_SEND, msg);
+        try {
+            messaging.send(outgoing.target(), msg);
+        } catch (IOException e) {
+            if (inFlight.remove(msg.getCorrelationId()) != null) {
+                if (call.replica != null) replicaSelector.onFailure(call.replica);
+                call.future.completeExceptionally(e);
+            }
+            releaseSlot();
+        }
+    }
+
+    private void onReply(DSMMessage reply) {
+        Call call = inFlight.remove(reply.getCorrelationId());
+        if (call == null) return; // late reply for a request that was already failed
+        tracer.record(Tracer.Event.CLIENT_REPLY, reply.getType(), reply.getAddress() == null ? -1 : reply.getAddress().getValue(),
+                reply.getSequenceNumber(), reply.getCorrelationId(), clientId);
+        CompletableFuture<DSMMessage> future = call.future;
+        if (call.replica != null && reply.getType() == DSMMessage.Type.BUSY) {
+            replicaSelector.onFailure(call.replica); // a fast BUSY says nothing about its read latency
+        } else if (call.replica != null) {
+            replicaSelector.onReply(call.replica, System.nanoTime() - call.sentNanos,
+                    reply.getType() == DSMMessage.Type.REPLY ? reply.getSequenceNumber() : 0);
+        }
+        if (reply.getType() == DSMMessage.Type.BUSY) {
+            busyReplies.increment();
+            shrinkWindow(call.sentNanos);
+            releaseSlot();
+            retryBusy(reply, call);
+            return;
+        }
+        if (LATENCY_TARGET_NANOS > 0 && System.nanoTime() - call.sentNanos > LATENCY_TARGET_NANOS) {
+            shrinkWindow(call.sentNanos);
+        } else {
+            growWindow();
+        }
+        releaseSlot();
+        if (reply.getType() == DSMMessage.Type.WRONG_OWNER) {
+            boolean refreshed = refreshTopology(reply);
+            String owner = reply.getValue() >= 0 ? "owned by " + partitionConfig.getGroup(reply.getValue())
+                    : "split across groups";
+            future.completeExceptionally(new WrongOwnerException("Address " + reply.getAddress().getValue()
+                    + " is " + owner + " at epoch " + reply.getSequenceNumber(), refreshed));
+        } else if (reply.getType() == DSMMessage.Type.SNAPSHOT_TOO_OLD) {
+            future.completeExceptionally(new SnapshotTooOldException(reply.getSequenceNumber() < 0
+                    ? "Nodes keep no versions; set dsm.mvcc.maxVersions"
+                    : "Snapshot versions are gone; low watermark is " + reply.getSequenceNumber()));
+        } else {
+            future.complete(reply);
+        }
+    }
+
+    // Sends the request again once the node had a moment, ahead of requests that have not been tried yet
+    private void retryBusy(DSMMessage reply, Call call) {
+        if (closed || ++call.busyRetries > MAX_BUSY_RETRIES) {
+            call.future.completeExceptionally(new NodeBusyException("Node stayed busy for " + call.outgoing.target()
+                    + " request to address " + (reply.getAddress() == null ? -1 : reply.getAddress().getValue())));
+            return;
+        }
+        long delay = BUSY_BACKOFF_MILLIS << Math.min(call.busyRetries - 1, 10);
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+            inFlight.put(call.outgoing.msg().getCorrelationId(), call);
+            if (closed) { // close() may have missed it
+                inFlight.remove(call.outgoing.msg().getCorrelationId());
+                call.future.completeExceptionally(new IllegalStateException("Client closed"));
+                return;
+            }
+            synchronized (this) {
+                waiting.addFirst(call.outgoing);
+            }
+            sendWaiting();
+        });
+    }
+
+    // Additive increase: about one more request per window's worth of replies
+    private synchronized void growWindow() {
+        if (window < maxInFlight) window = Math.min(maxInFlight, window + 1 / window);
+    }
+
+    // Multiplicative decrease, once per window: replies to requests sent before the last decrease
+    // describe the load from before it
+    private synchronized void shrinkWindow(long sentNanos) {
+        if (sentNanos - lastDecreaseNanos < 0) return;
+        window = Math.max(MIN_WINDOW, window / 2);
+        lastDecreaseNanos = System.nanoTime();
+    }
+
+    // Frees a window slot and fills whatever room the window has with waiting requests.
+    private void releaseSlot() {
+        synchronized (this) {
+            outstanding--;
+        }
+        sendWaiting();
+    }
+
+    private void sendWaiting() {
+        while (true) {
+            Outgoing next;
+            synchronized (this) {
+                if (outstanding >= (int) window || (next = waiting.poll()) == null) return;
+                outstanding++;
+            }
+            send(next);
+        }
+    }
+
+    // Current limit on outstanding requests, between 1 and maxInFlight
+    public synchronized int getWindow() {
+        return (int) window;
+    }
+
+    // BUSY replies received, retries included
+    public long getBusyReplies() {
+        return busyReplies.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            waiting.clear();
+        }
+        IllegalStateException cause = new IllegalStateException("Client closed");
+        inFlight.values().forEach(call -> {
+            if (call.replica != null && call.sentNanos != 0) replicaSelector.onFailure(call.replica);
+            call.future.completeExceptionally(cause);
+        });
+        inFlight.clear();
+        tracer.close();
+    }
+}
@@ -2,32 +2,147 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class DSMMessage {
-    public enum Type { WRITE, READ, REPLICATE, REPLICATE_ACK}
+    public enum Type {
+        WRITE, READ, REPLICATE, REPLICATE_ACK, REPLY, REPLICATE_BATCH,
+        // Multi-address operations: MGET/MSET use addresses (and values); the range
+        // operations cover [address, value) for reads and [address, address + values.length) for writes
+        MGET, MSET, RANGE_READ, RANGE_WRITE,
+        // Rebalancing: TOPOLOGY carries a new routing table (values) for epoch sequenceNumber;
+        // MIGRATE_CHUNK moves words to a partition's new primary (RANGE_WRITE or MSET layout);
+        // MIGRATE_DONE hands partition value over at the sender's sequenceNumber
+        TOPOLOGY, MIGRATE_CHUNK, MIGRATE_DONE,
+        // Reply to a request routed by an out-of-date table: value is the owning group,
+        // sequenceNumber the node's epoch and values its routing table
+        WRONG_OWNER,
+        // Anti-entropy: SYNC_HASHES carries a replica's Merkle hashes (sequenceNumbers) for the nodes
+        // (addresses) of tree level value; SYNC_EXPAND asks it for the children of the nodes that
+        // differ. sequenceNumber is the replica's applied sequence when the comparison started
+        SYNC_HASHES, SYNC_EXPAND,
+        // Atomic read-modify-write of address on the primary: CAS stores values[0] if the word equals
+        // value, FETCH_ADD adds value (wrapping on overflow), SWAP stores value. The REPLY's value is
+        // the word before the operation, so a CAS succeeded iff it equals the expected value
+        CAS, FETCH_ADD, SWAP,
+        // Reads addresses (or, without them, the range [address, value)) as of one sequence number
+        // from the versions a node keeps: sequenceNumbers[0] if present, else the latest the node has.
+        // The REPLY's sequenceNumber is the snapshot. SNAPSHOT_TOO_OLD answers one the node no longer
+        // has, with its low watermark as sequenceNumber. A replica waits for a snapshot it has not reached
+        // yet; the primary answers one past its latest write as of that write
+        SNAPSHOT_READ, SNAPSHOT_TOO_OLD,
+        // Reply to a client request the node turned away because it is overloaded; nothing was done,
+        // so the client may retry it as is
+        BUSY,
+        // Replication: a REPLICATE_BATCH's correlationId is the sequenceNumber of the batch sent before it.
+        // A replica that has not applied that far answers REPLICATE_NACK with the sequenceNumber it has
+        REPLICATE_NACK,
+        // Anti-entropy: the primary's current words (addresses, values) of whole partitions that differ on
+        // one replica and that the primary has not written since that replica's sequenceNumber
+        SYNC_REPAIR;
+
+        // Client requests served by any member of the replication group
+        public boolean isRead() {
+            return this == READ || this == MGET || this == RANGE_READ || this == SNAPSHOT_READ;
+        }
+
+        // Client requests that must be executed by the partition primary
+        public boolean isWrite() {
+            return this == WRITE || this == MSET || this == RANGE_WRITE || isAtomic();
+        }
+
+        public boolean isAtomic() {
+            return this == CAS || this == FETCH_ADD || this == SWAP;
+        }
+    }
+
+    // TOPOLOGY value: adopt the routing table as-is, or migrate the partitions that change owner
+    public static final int TOPOLOGY_ADOPT = 0;
+    public static final int TOPOLOGY_MIGRATE = 1;
 
     private final Type type;
     private final Address address;
-    private final String value;
+    private final int value;
     private final String replyToQueue;
     private final long sequenceNumber;
+    private final long correlationId; // echoed back in the REPLY so clients can match it to the request
+    // Optional per-entry payload for messages that cover several addresses (may be null)
+    private final int[] addresses;
+    private final int[] values;
+    private final long[] sequenceNumbers;
+    private final long epoch; // topology epoch the sender routed by, 0 if unknown
+    private final AckMode ackMode; // writes only: when to acknowledge, null for the node's default
+
+    public DSMMessage(Type type, Address address, int value, String replyToQueue, long sequenceNumber) {
+        this(type, address, value, replyToQueue, sequenceNumber, 0);
+    }
+
+    public DSMMessage(Type type, Address address, int value, String replyToQueue, long sequenceNumber,
+                      long correlationId) {
+        this(type, address, value, replyToQueue, sequenceNumber, correlationId, null, null, null);
+    }
+
+    public DSMMessage(Type type, Address address, int value, String replyToQueue, long sequenceNumber,
+                      long correlationId, int[] addresses, int[] values, long[] sequenceNumbers) {
+        this(type, address, value, replyToQueue, sequenceNumber, correlationId, addresses, values, sequenceNumbers, 0);
+    }
+
+    public DSMMessage(Type type, Address address, int value, String replyToQueue, long sequenceNumber,
+                      long correlationId, int[] addresses, int[] values, long[] sequenceNumbers, long epoch) {
+        this(type, address, value, replyToQueue, sequenceNumber, correlationId, addresses, values, sequenceNumbers,
+                epoch, null);
+    }
 
     @JsonCreator
     public DSMMessage(
             @JsonProperty("type") Type type,
             @JsonProperty("address") Address address,
-            @JsonProperty("value") String value,
+            @JsonProperty("value") int value,
             @JsonProperty("replyToQueue") String replyToQueue,
-            @JsonProperty("sequenceNumber") long sequenceNumber) {
+            @JsonProperty("sequenceNumber") long sequenceNumber,
+            @JsonProperty("correlationId") long correlationId,
+            @JsonProperty("addresses") int[] addresses,
+            @JsonProperty("values") int[] values,
+            @JsonProperty("sequenceNumbers") long[] sequenceNumbers,
+            @JsonProperty("epoch") long epoch,
+            @JsonProperty("ackMode") AckMode ackMode) {
         this.type = type;
         this.address = address;
         this.value = value;
         this.replyToQueue = replyToQueue;
         this.sequenceNumber = sequenceNumber;
+        this.correlationId = correlationId;
+        this.addresses = addresses;
+        this.values = values;
+        this.sequenceNumbers = sequenceNumbers;
+        this.epoch = epoch;
+        this.ackMode = ackMode;
+    }
+
+    // Reply to a client request; sequenceNumber is the write's sequence or the sequence the read was served at.
+    public static DSMMessage reply(DSMMessage request, int value, long sequenceNumber) {
+        return new DSMMessage(Type.REPLY, request.getAddress(), value, null, sequenceNumber, request.getCorrelationId());
+    }
+
+    // Reply carrying one value per requested address
+    public static DSMMessage reply(DSMMessage request, int[] values, long sequenceNumber) {
+        return new DSMMessage(Type.REPLY, request.getAddress(), 0, null, sequenceNumber,
+                request.getCorrelationId(), null, values, null);
+    }
+
+    // Announces config's routing table and epoch to a node
+    public static DSMMessage topology(PartitionConfig config, boolean migrate) {
+        return new DSMMessage(Type.TOPOLOGY, null, migrate ? TOPOLOGY_MIGRATE : TOPOLOGY_ADOPT, null,
+                config.getEpoch(), 0, null, config.getRoutingTable(), null, config.getEpoch());
     }
 
     // Getters
     public Type getType() { return type; }
     public Address getAddress() { return address; }
-    public String getValue() { return value; }
+    public int getValue() { return value; }
     public String getReplyToQueue() { return replyToQueue; }
     public long getSequenceNumber() {return sequenceNumber;}
+    public long getCorrelationId() { return correlationId; }
+    public int[] getAddresses() { return addresses; }
+    public int[] getValues() { return values; }
+    public long[] getSequenceNumbers() { return sequenceNumbers; }
+    public long getEpoch() { return epoch; }
+    public AckMode getAckMode() { return ackMode; }
 }
\ No newline at end of file
@@ -1,9 +1,14 @@
-import com.fasterxml.jackson.annotation.JsonCreator;
-import com.fasterxml.jackson.annotation.JsonProperty;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 
 
@@ -11,250 +16,783 @@ public class DSMNode {
     private final String name;
     private final int startAddress;
     private final int endAddress;
-    private final Map<Integer, Integer> storage;
+    private StorageEngine storage;
     private final boolean isPrimary;
     private final List<String> replicaNodes;
-    private static final long REPLICATION_DELAY_MS = 0; // 100 milliseconds delay
 
-
-
-    private PartitionConfig partitionConfig;
+    private volatile PartitionConfig partitionConfig;
+    private int groupId = -1; // this node's replication group in partitionConfig
+    private int partitionShift; // address >>> partitionShift is the virtual partition
+    private boolean customStorage; // set when the storage engine was supplied from outside
     private MessagingService messagingService;
+    // Picks the replica for forwarded reads. Those always go to another group, whose acks this node never
+    // sees, and the reply goes straight to the client, so there is no load, latency or sequence to steer
+    // by: a uniform choice is all a node can honestly make. Clients run the feedback-driven selectors.
+    private ReplicaSelector replicaSelector = new RandomReplicaSelector();
 
-    // Add this nested class inside DSMNode.java
-    private static class WriteKey {
-        private final Address address;
-        private final long sequenceNumber;
+    // A write the primary has not acknowledged yet; keyed by its sequence number
+    private static class PendingWrite {
+        private final DSMMessage request; // client request to acknowledge, may be null
+        private int remainingAcks; // replica acks still needed by the request's AckMode
+        private boolean awaitingLog; // the local write-ahead log has not made it durable yet
+        private final int result; // reply value: the previous word for atomic operations, else 0
+        private final long startNanos = System.nanoTime();
 
-        public WriteKey(Address address, long sequenceNumber) {
-            this.address = address;
-            this.sequenceNumber = sequenceNumber;
+        PendingWrite(DSMMessage request, int remainingAcks, boolean awaitingLog, int result) {
+            this.request = request;
+            this.remainingAcks = remainingAcks;
+            this.awaitingLog = awaitingLog;
+            this.result = result;
         }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            WriteKey writeKey = (WriteKey) o;
-            return sequenceNumber == writeKey.sequenceNumber && address.equals(writeKey.address);
-        }
+    private final NavigableMap<Long, PendingWrite> pendingReplications = new ConcurrentSkipListMap<>();
+    // Highest sequence number each replica has acknowledged (acks are cumulative)
+    private final Map<String, Long> acknowledgedSequenceNumbers = new ConcurrentHashMap<>();
+    private ReplicationBatcher replicationBatcher;
+    private NodePersistence persistence; // null unless enablePersistence() was called
+    // Pseudo replica name under which the local write-ahead log acknowledges durable writes
+    private static final String LOCAL_LOG = "<local-log>";
+    // Replica with persistence: cumulative acks waiting, in apply order, for the log records written
+    // before them to be durable. Guarded by itself.
+    private final ArrayDeque<DeferredAck> deferredAcks = new ArrayDeque<>();
+    private record DeferredAck(String primary, long sequenceNumber, long logged) {}
+    // Spreads incoming messages over worker threads, keyed by address; created in start()
+    private StripedDispatcher dispatcher;
+    // Held on the primary while a write takes its sequence number and is handed to the log and
+    // the batcher, so both always see writes in sequence order even with several workers
+    private final Object sequencer = new Object();
+
+    // A partition moving into or out of this node's group under the current epoch. Until the
+    // handoff completes, requests for it keep going to the previous owner.
+    private static class Handoff {
+        private final int previousGroup;
+        private final int nextGroup;
+        // Sequence number this replica must reach before it serves the partition; set by MIGRATE_DONE
+        private volatile long readyAt = Long.MAX_VALUE;
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(address, sequenceNumber);
+        Handoff(int previousGroup, int nextGroup) {
+            this.previousGroup = previousGroup;
+            this.nextGroup = nextGroup;
         }
     }
 
-    private final Map<WriteKey, Integer> pendingReplications = new ConcurrentHashMap<>();
-    private final Map<WriteKey, String> pendingClientReplies = new ConcurrentHashMap<>();
+    // Keyed by virtual partition; empty except while a rebalance is in progress
+    private final Map<Integer, Handoff> handoffs = new ConcurrentHashMap<>();
+    // MIGRATE_DONE messages that overtook the TOPOLOGY they belong to, keyed by virtual partition
+    private final Map<Integer, DSMMessage> earlyHandoffs = new HashMap<>(); // guarded by topologyLock
+    private final Object topologyLock = new Object();
+    // Words per MIGRATE_CHUNK when streaming a partition to its new owner
+    private static final int MIGRATION_CHUNK_WORDS = Integer.getInteger("dsm.migration.chunkWords", PagedStorageEngine.PAGE_SIZE);
+
+    // How often a replica compares its hash tree with the primary's; 0 turns anti-entropy off
+    private static final long ANTI_ENTROPY_INTERVAL_MILLIS = Long.getLong("dsm.antiEntropy.intervalMillis", 10000);
+    // Most words the primary sends per repair; the rest are repaired in later rounds
+    private static final int MAX_REPAIR_WORDS = Integer.getInteger("dsm.antiEntropy.maxRepairWords", 65536);
+    private MerkleTree merkleTree; // over the storage, created in start()
+
+    // Recent versions of written words for snapshot reads; null unless dsm.mvcc.maxVersions is set
+    private MultiVersionStore versions;
+    private static final long MVCC_GC_INTERVAL_MILLIS = Long.getLong("dsm.mvcc.gcIntervalMillis", 1000);
+    private ScheduledExecutorService versionCollector;
+    private ScheduledExecutorService antiEntropy; // replicas only
+
+    // Admission control: past these, client requests are answered BUSY instead of being queued
+    private static final int MAX_QUEUED_REQUESTS = Integer.getInteger("dsm.node.maxQueued", 8192);
+    private static final int MAX_PENDING_WRITES = Integer.getInteger("dsm.node.maxPendingWrites", 8192);
+    private static final int MAX_PARKED_READS = Integer.getInteger("dsm.node.maxParkedReads", 8192);
+    private final AtomicInteger pendingWriteCount = new AtomicInteger(); // pendingReplications.size() is not O(1)
+    private final LongAdder busyQueue;
+    private final LongAdder busyWrites;
+    private final LongAdder busyReads;
+
+    // Instrumentation; the hot path only bumps these, gauges are registered in start()
+    private final Metrics metrics;
+    private final LongAdder[] handled; // by message type ordinal
+    private final LatencyHistogram[] handleTimes; // by message type ordinal
+    private final LongAdder errors;
+    private final LatencyHistogram replicationTimes; // write applied to write acknowledged
+    private final LongAdder repairedPartitions;
+    private final LongAdder replicationGaps;
+    // Hot-path events go here instead of stdout; replaced in start() when dsm.trace.level is set
+    private Tracer tracer = Tracer.DISABLED;
 
-    @JsonCreator
-    public DSMNode(
-            @JsonProperty("name") String name,
-            @JsonProperty("startAddress") int startAddress,
-            @JsonProperty("endAddress") int endAddress,
-            @JsonProperty("primary") boolean isPrimary,
-            @JsonProperty("replicaNodes") List<String> replicaNodes) {
+    public DSMNode(String name, int startAddress, int endAddress, boolean isPrimary, List<String> replicaNodes) {
         this.name = name;
         this.startAddress = startAddress;
         this.endAddress = endAddress;
         this.isPrimary = isPrimary;
         this.replicaNodes = replicaNodes;
-        this.storage = new HashMap<>();
+        // Pages are allocated lazily, so this is cheap even for very large ranges.
+        this.storage = new PagedStorageEngine(startAddress, endAddress);
+        this.pendingReads = new PendingReads(name, this::serveParkedRead, this::readTimedOut);
+        this.metrics = new Metrics(name);
+        DSMMessage.Type[] types = DSMMessage.Type.values();
+        this.handled = new LongAdder[types.length];
+        this.handleTimes = new LatencyHistogram[types.length];
+        for (DSMMessage.Type type : types) {
+            handled[type.ordinal()] = metrics.counter("dsm_messages_total", "Messages handled, by type",
+                    "type", type.name());
+            handleTimes[type.ordinal()] = metrics.histogram("dsm_handle_seconds",
+                    "Time spent handling a message on a worker, by type", "type", type.name());
+        }
+        this.errors = metrics.counter("dsm_message_errors_total", "Messages whose handling threw");
+        this.replicationTimes = metrics.histogram("dsm_write_ack_seconds",
+                "Primary: from applying a write to acknowledging it, i.e. waiting for replicas and the log");
+        this.busyQueue = metrics.counter("dsm_busy_total", "Client requests turned away with BUSY, by limit hit",
+                "reason", "queue");
+        this.busyWrites = metrics.counter("dsm_busy_total", "Client requests turned away with BUSY, by limit hit",
+                "reason", "pending_writes");
+        this.busyReads = metrics.counter("dsm_busy_total", "Client requests turned away with BUSY, by limit hit",
+                "reason", "parked_reads");
+        this.repairedPartitions = metrics.counter("dsm_antientropy_repaired_partitions_total",
+                "Primary: partitions re-replicated because a replica's hashes disagreed");
+        this.replicationGaps = metrics.counter("dsm_replication_gaps_total",
+                "Replica: batches refused with REPLICATE_NACK because an earlier one was missing");
+        metrics.histogram("dsm_read_wait_seconds", "Replica: time reads spent parked waiting for replication",
+                pendingReads.waitTimes());
+        metrics.counter("dsm_read_timeouts_total", "Replica: parked reads redirected to the primary after timing out",
+                pendingReads::timeouts);
         // Set these to null initially; they will be injected later.
         this.partitionConfig = null;
         this.messagingService = null;
-        initializeStorage();
     }
 
-    private void initializeStorage() {
-        for (int addr = startAddress; addr <= endAddress; addr++) {
-            storage.put(addr, 0);
-        }
+    // Setter to plug in a different storage engine before the node is started.
+    public void setStorageEngine(StorageEngine storage) {
+        this.storage = storage;
+        this.customStorage = true;
     }
 
-    // Setter to inject PartitionConfig after deserialization.
+    // Keeps a write-ahead log and snapshots under directory; call before start() and after setStorageEngine().
+    public void enablePersistence(Path directory) throws IOException {
+        this.persistence = new NodePersistence(name, directory, storage);
+    }
+
+    // Setter to inject PartitionConfig once the node is created.
+    // Partitions can move between groups, so the default storage covers the whole address space.
     public void setPartitionConfig(PartitionConfig config) {
         this.partitionConfig = config;
+        this.groupId = config.getGroupOfNode(name);
+        this.partitionShift = Integer.numberOfTrailingZeros(config.getPartitionSize());
+        if (!customStorage && (startAddress != 0 || endAddress != config.getTotalAddresses() - 1)) {
+            this.storage = new PagedStorageEngine(0, config.getTotalAddresses() - 1);
+        }
     }
 
-    // Setter to inject MessagingService after deserialization.
+    // Setter to inject MessagingService once the node is created.
     public void setMessagingService(MessagingService messaging) {
         this.messagingService = messaging;
     }
 
+    public void setReplicaSelector(ReplicaSelector selector) {
+        this.replicaSelector = selector;
+    }
+
     public boolean isLocalAddress(Address address) {
         int addrValue = address.getValue();
-        return addrValue >= startAddress && addrValue <= endAddress;
+        if (partitionConfig == null) {
+            return addrValue >= startAddress && addrValue <= endAddress;
+        }
+        if (addrValue < 0 || addrValue >= partitionConfig.getTotalAddresses()) return false;
+        return ownerGroup(addrValue) == groupId;
     }
 
-    private void handleMessage(DSMMessage msg) {
-        try {
-            if (!isLocalAddress(msg.getAddress())) {
-                System.out.println("[" + name + "] Forwarding " + msg.getType() + " for address " + msg.getAddress().getValue());
-                forwardMessage(msg);
-                return;
+    // Group that serves an address from this node's point of view, taking handoffs into account
+    private int ownerGroup(int address) {
+        PartitionConfig config = partitionConfig;
+        int partitionID = config.getPartitionId(address);
+        if (!handoffs.isEmpty()) {
+            Handoff handoff = handoffs.get(partitionID);
+            if (handoff != null) {
+                if (latestSequenceNumber.get() < handoff.readyAt) return handoff.previousGroup;
+                handoffs.remove(partitionID, handoff); // this replica has caught up with the new owner
             }
+        }
+        return config.getGroupOfPartition(partitionID);
+    }
 
-            switch (msg.getType()) {
-                case WRITE -> {
-                    if (isPrimary) {
-                        handleWrite(msg);
-                    } else {
-                        forwardMessage(msg); // Forward to primary if not primary
-                    }
-                }
-                case READ -> handleRead(msg);
+    // The group that owns every address a request touches, or -1 if they are owned by several
+    private int requestOwner(DSMMessage msg) {
+        int first = msg.getAddress().getValue();
+        int owner = ownerGroup(first);
+        return switch (msg.getType()) {
+            case MGET, MSET -> sameOwner(msg.getAddresses(), owner);
+            case RANGE_READ -> sameOwner(first, msg.getValue(), owner);
+            case RANGE_WRITE -> sameOwner(first, first + msg.getValues().length, owner);
+            case SNAPSHOT_READ -> msg.getAddresses() != null ? sameOwner(msg.getAddresses(), owner)
+                    : sameOwner(first, msg.getValue(), owner);
+            default -> owner;
+        };
+    }
+
+    private int sameOwner(int[] addresses, int owner) {
+        for (int address : addresses) {
+            if (ownerGroup(address) != owner) return -1;
+        }
+        return owner;
+    }
+
+    // For the range [first, end), where first is owned by owner
+    private int sameOwner(int first, int end, int owner) {
+        int partitionSize = 1 << partitionShift;
+        for (int start = (first >>> partitionShift) * partitionSize + partitionSize; start < end; start += partitionSize) {
+            if (ownerGroup(start) != owner) return -1;
+        }
+        return owner;
+    }
+
+    // Same partition, same worker: keeps per-address order, and a partition handoff is handled in
+    // order with the requests around it. Replication from one primary stays on one worker because
+    // replicas apply it strictly in sequence order. A client request finding its worker's queue full
+    // is answered BUSY; everything else waits for room, which slows down whoever sent it.
+    // Replication acks are handled right here instead: they never wait, so a primary whose workers are
+    // held up sending to a full replica still hears from it, and the two cannot wait on each other.
+    private void dispatch(DSMMessage msg) {
+        DSMMessage.Type type = msg.getType();
+        if (type == DSMMessage.Type.REPLICATE_ACK || type == DSMMessage.Type.REPLICATE_NACK) {
+            handleMessage(msg);
+            return;
+        }
+        boolean clientRequest = type.isRead() || type.isWrite();
+        if (clientRequest && !admit(msg)) return;
+        int key = switch (msg.getType()) {
+            case REPLICATE, REPLICATE_BATCH, SYNC_REPAIR -> Objects.hashCode(msg.getReplyToQueue());
+            default -> msg.getAddress() == null ? 0 : msg.getAddress().getValue() >>> partitionShift;
+        };
+        if (!clientRequest) {
+            dispatcher.dispatch(key, msg);
+        } else if (!dispatcher.offer(key, msg)) {
+            turnAway(msg, busyQueue);
+        }
+    }
 
+    // Runs on the transport's thread before a client request is queued. Turning it away here costs one
+    // small reply, where queueing it would hold memory and add to every queued request's latency.
+    private boolean admit(DSMMessage msg) {
+        LongAdder reason;
+        if (dispatcher.queueDepth() >= MAX_QUEUED_REQUESTS) {
+            reason = busyQueue;
+        } else if (msg.getType().isWrite() && pendingWriteCount.get() >= MAX_PENDING_WRITES) {
+            reason = busyWrites;
+        } else if (msg.getType().isRead() && msg.getSequenceNumber() > latestSequenceNumber.get()
+                && pendingReads.size() >= MAX_PARKED_READS) {
+            reason = busyReads; // only reads that would park count against the parked reads
+        } else {
+            return true;
+        }
+        turnAway(msg, reason);
+        return false;
+    }
 
-                case REPLICATE -> handleReplicate(msg);
-                case REPLICATE_ACK -> handleReplicateAck(msg);
+    private void turnAway(DSMMessage msg, LongAdder reason) {
+        reason.increment();
+        tracer.record(Tracer.Event.BUSY, msg, latestSequenceNumber.get());
+        if (msg.getReplyToQueue() != null) {
+            try {
+                messagingService.sendReply(msg.getReplyToQueue(), new DSMMessage(DSMMessage.Type.BUSY, msg.getAddress(),
+                        0, null, 0, msg.getCorrelationId()));
+            } catch (IOException e) {
+                System.err.println("Failed to send BUSY reply: " + e.getMessage());
             }
+        }
+    }
+
+    private void handleMessage(DSMMessage msg) {
+        long start = System.nanoTime();
+        tracer.record(Tracer.Event.RECEIVED, msg);
+        try {
+            route(msg);
         } catch (Exception e) {
+            errors.increment();
             System.err.println("Error handling message: " + e.getMessage());
+        } finally {
+            int type = msg.getType().ordinal();
+            handled[type].increment();
+            handleTimes[type].recordSince(start);
+        }
+    }
+
+    private void route(DSMMessage msg) {
+        // Replication traffic is always sent to the right node and has no single address
+        switch (msg.getType()) {
+            case REPLICATE -> {
+                handleReplicate(msg);
+                return;
+            }
+            case REPLICATE_BATCH -> {
+                handleReplicateBatch(msg);
+                return;
+            }
+            case REPLICATE_ACK -> {
+                handleReplicateAck(msg);
+                return;
+            }
+            case REPLICATE_NACK -> {
+                handleReplicateNack(msg);
+                return;
+            }
+            case SYNC_HASHES -> {
+                handleSyncHashes(msg);
+                return;
+            }
+            case SYNC_EXPAND -> {
+                handleSyncExpand(msg);
+                return;
+            }
+            case SYNC_REPAIR -> {
+                applyRepair(msg);
+                return;
+            }
+            case TOPOLOGY -> {
+                handleTopology(msg);
+                return;
+            }
+            case MIGRATE_CHUNK -> {
+                applyMigrationChunk(msg);
+                return;
+            }
+            case MIGRATE_DONE -> {
+                handleMigrationDone(msg);
+                return;
+            }
+            default -> { }
+        }
+
+        int owner = requestOwner(msg);
+        if (owner < 0) {
+            // Only a client routing by an old table splits a request across groups like this
+            replyWrongOwner(msg, owner);
+            return;
+        }
+        if (owner != groupId) {
+            if (msg.getEpoch() < partitionConfig.getEpoch()) {
+                // Tell the client about the new table rather than paying a forwarding hop on every request
+                replyWrongOwner(msg, owner);
+                return;
+            }
+            tracer.record(Tracer.Event.FORWARDED, msg);
+            forwardMessage(msg, owner);
+            return;
+        }
+
+        switch (msg.getType()) {
+            case WRITE, MSET, RANGE_WRITE, CAS, FETCH_ADD, SWAP -> {
+                if (isPrimary) {
+                    handleWrite(msg);
+                } else {
+                    forwardMessage(msg, owner); // Forward to primary if not primary
+                }
+            }
+            case READ, MGET, RANGE_READ, SNAPSHOT_READ -> handleRead(msg);
+            default -> System.err.println("[" + name + "] Unexpected " + msg.getType() + " message");
         }
     }
 
     private final AtomicLong latestSequenceNumber = new AtomicLong(0); // Track the latest sequence number
-    private final Map<Long, Runnable> pendingReads = new ConcurrentHashMap<>(); // For delayed reads
+    // Reads waiting for this replica to catch up to the sequence number the client has seen
+    private final PendingReads pendingReads;
 
-    // In DSMNode.java, modify handleWrite():
     private void handleWrite(DSMMessage msg) {
+        if (msg.getType().isAtomic()) {
+            handleAtomic(msg);
+            return;
+        }
+        if (msg.getType() != DSMMessage.Type.WRITE) {
+            handleMultiWrite(msg);
+            return;
+        }
+        long sequenceNumber;
+        synchronized (sequencer) {
+            if (!handoffs.isEmpty() && handedOff(msg)) return;
+            sequenceNumber = applyWrite(msg, msg.getAddress().getValue(), msg.getValue(), 0);
+        }
+        tracer.record(Tracer.Event.WRITE_APPLIED, msg, sequenceNumber);
+    }
+
+    // CAS, FETCH_ADD and SWAP read and write the word under the sequencer, so nothing can come
+    // between the two; only the resulting value is replicated. The client gets the previous value.
+    private void handleAtomic(DSMMessage msg) {
+        int address = msg.getAddress().getValue();
+        int previous;
+        long sequenceNumber;
+        boolean applied;
+        synchronized (sequencer) {
+            if (!handoffs.isEmpty() && handedOff(msg)) return;
+            previous = storage.read(address);
+            int value = switch (msg.getType()) {
+                case CAS -> previous == msg.getValue() ? msg.getValues()[0] : previous;
+                case FETCH_ADD -> previous + msg.getValue();
+                default -> msg.getValue();
+            };
+            applied = msg.getType() != DSMMessage.Type.CAS || previous == msg.getValue();
+            sequenceNumber = applied ? applyWrite(msg, address, value, previous) : latestSequenceNumber.get();
+        }
+        if (applied) {
+            tracer.record(Tracer.Event.WRITE_APPLIED, msg, sequenceNumber);
+        } else {
+            // A failed CAS changes nothing; the reply is a read at the current sequence number
+            sendWriteAck(msg, sequenceNumber, previous);
+        }
+    }
+
+    // Applies one word under a new sequence number, logs and replicates it; result is what the
+    // client's reply carries. Caller holds the sequencer.
+    private long applyWrite(DSMMessage request, int address, int value, int result) {
         long sequenceNumber = latestSequenceNumber.incrementAndGet();
-        int value = Integer.parseInt(msg.getValue());
-        storage.put(msg.getAddress().getValue(), value);
-        System.out.println("[" + name + "] WROTE value " + msg.getValue() + " at address " + msg.getAddress().getValue());
+        store(address, value, sequenceNumber);
 
-        if (isPrimary) {
-            Address address = msg.getAddress();
-            WriteKey key = new WriteKey(address, sequenceNumber); // Unique key for this write
-            pendingReplications.put(key, replicaNodes.size()); // Track replicas for THIS write
+        // Register before logging and replicating so an early ack cannot miss it
+        trackPendingWrite(request, sequenceNumber, result);
+        if (persistence != null) {
+            persistence.logWrite(sequenceNumber, address, value);
+        }
+        if (!replicaNodes.isEmpty()) {
+            replicationBatcher.append(address, value, sequenceNumber);
+        }
+        if (!handoffs.isEmpty()) {
+            forwardToNewOwners(new int[] {address}, new int[] {value});
+        }
+        return sequenceNumber;
+    }
 
-            if (msg.getReplyToQueue() != null) {
-                pendingClientReplies.put(key, msg.getReplyToQueue()); // Track reply queue for THIS write
+    // MSET and RANGE_WRITE: all entries share one sequence number and replicate as one unit.
+    private void handleMultiWrite(DSMMessage msg) {
+        int[] values = msg.getValues();
+        int[] addresses;
+        if (msg.getType() == DSMMessage.Type.RANGE_WRITE) {
+            addresses = new int[values.length];
+            for (int i = 0; i < values.length; i++) addresses[i] = msg.getAddress().getValue() + i;
+        } else {
+            addresses = msg.getAddresses();
+        }
+        if (addresses.length != values.length) {
+            throw new IllegalArgumentException(msg.getType() + " has " + addresses.length
+                    + " addresses but " + values.length + " values");
+        }
+
+        long sequenceNumber;
+        synchronized (sequencer) {
+            if (!handoffs.isEmpty() && handedOff(msg)) return;
+            sequenceNumber = applyUnit(msg, addresses, values);
+            if (!handoffs.isEmpty()) {
+                forwardToNewOwners(addresses, values);
             }
+        }
+        tracer.record(Tracer.Event.WRITE_APPLIED, msg, sequenceNumber);
+    }
 
-            replicaNodes.forEach(replica -> {
-                System.out.println("[" + name + "] Sending REPLICATE for seq=" + sequenceNumber + " to " + replica);
-                DSMMessage replicateMessage = new DSMMessage(
-                        DSMMessage.Type.REPLICATE, address, msg.getValue(), this.name, sequenceNumber
-                );
-                try {
-                    messagingService.send(replica, replicateMessage);
-                } catch (IOException e) {
-                    System.out.println("Replication failed to " + replica + ": " + e.getMessage());
-                }
-            });
+    // Applies entries under one new sequence number and replicates them as a unit. Caller holds the sequencer.
+    private long applyUnit(DSMMessage request, int[] addresses, int[] values) {
+        long sequenceNumber = latestSequenceNumber.incrementAndGet();
+        for (int i = 0; i < addresses.length; i++) {
+            store(addresses[i], values[i], sequenceNumber);
+        }
+        trackPendingWrite(request, sequenceNumber, 0);
+        if (persistence != null) {
+            persistence.logWrite(addresses, values, sequenceNumber);
+        }
+        if (!replicaNodes.isEmpty()) {
+            replicationBatcher.append(addresses, values, sequenceNumber);
+        }
+        return sequenceNumber;
+    }
+
+    // A partition may have been cut over between routing a write and taking the sequencer; if so the
+    // write is re-routed instead of applied. Caller holds the sequencer.
+    private boolean handedOff(DSMMessage msg) {
+        int owner = requestOwner(msg);
+        if (owner == groupId) return false;
+        if (owner < 0) {
+            replyWrongOwner(msg, owner);
+        } else {
+            forwardMessage(msg, owner);
         }
+        return true;
     }
 
-    // In DSMNode.java, modify decrementPendingReplications():
-    private void decrementPendingReplications(Address address, long sequenceNumber) {
-        WriteKey key = new WriteKey(address, sequenceNumber);
+    // The client is acked once as many replicas as its AckMode asks for, and the local log if
+    // persistence is on, have the write.
+    private void trackPendingWrite(DSMMessage msg, long sequenceNumber, int result) {
+        AckMode mode = msg != null && msg.getAckMode() != null ? msg.getAckMode() : AckMode.DEFAULT;
+        int requiredAcks = mode.requiredReplicaAcks(replicaNodes.size());
+        if (requiredAcks == 0 && persistence == null) {
+            sendWriteAck(msg, sequenceNumber, result);
+        } else {
+            pendingReplications.put(sequenceNumber, new PendingWrite(msg, requiredAcks, persistence != null, result));
+            pendingWriteCount.incrementAndGet();
+        }
+    }
+
+    // Acks are cumulative: every write up to ackedSequenceNumber is now on this replica. Writes are
+    // dropped once acknowledged, so under QUORUM or PRIMARY a lagging replica's acks find nothing left.
+    private void decrementPendingReplications(String replica, long ackedSequenceNumber) {
         synchronized (pendingReplications) {
-            int remaining = pendingReplications.getOrDefault(key, 0) - 1;
-            if (remaining <= 0) {
-                pendingReplications.remove(key);
-                // Send acknowledgment to client
-                String replyQueue = pendingClientReplies.remove(key); // Use WriteKey to get the correct reply
-                if (replyQueue != null) {
-                    try {
-                        messagingService.sendReply(replyQueue, "ACK");
-                    } catch (IOException e) {
-                        System.err.println("Failed to send ACK to client: " + e.getMessage());
+            long previous = acknowledgedSequenceNumbers.getOrDefault(replica, 0L);
+            if (ackedSequenceNumber <= previous) return;
+            acknowledgedSequenceNumbers.put(replica, ackedSequenceNumber);
+
+            Iterator<Map.Entry<Long, PendingWrite>> covered =
+                    pendingReplications.subMap(previous, false, ackedSequenceNumber, true).entrySet().iterator();
+            while (covered.hasNext()) {
+                Map.Entry<Long, PendingWrite> entry = covered.next();
+                PendingWrite write = entry.getValue();
+                if (replica.equals(LOCAL_LOG)) {
+                    write.awaitingLog = false;
+                } else {
+                    write.remainingAcks--;
+                }
+                if (write.remainingAcks <= 0 && !write.awaitingLog) {
+                    covered.remove();
+                    pendingWriteCount.decrementAndGet();
+                    replicationTimes.recordSince(write.startNanos);
+                    if (write.request != null) {
+                        sendWriteAck(write.request, entry.getKey(), write.result);
                     }
                 }
-            } else {
-                pendingReplications.put(key, remaining);
             }
         }
     }
 
-    // Update handleReplicateAck() to pass the sequence number:
+    private void sendWriteAck(DSMMessage request, long sequenceNumber, int result) {
+        if (request == null || request.getReplyToQueue() == null) return;
+        tracer.record(Tracer.Event.WRITE_ACKED, request, sequenceNumber);
+        try {
+            messagingService.sendReply(request.getReplyToQueue(), DSMMessage.reply(request, result, sequenceNumber));
+        } catch (IOException e) {
+            System.err.println("Failed to send ACK to client: " + e.getMessage());
+        }
+    }
+
+    // The ack's replyToQueue names the replica that sent it
     private void handleReplicateAck(DSMMessage msg) {
-        decrementPendingReplications(msg.getAddress(), msg.getSequenceNumber());
+        tracer.record(Tracer.Event.REPLICA_ACKED, msg);
+        decrementPendingReplications(msg.getReplyToQueue(), msg.getSequenceNumber());
+        if (replicationBatcher != null) {
+            replicationBatcher.acknowledged(msg.getReplyToQueue(), msg.getSequenceNumber());
+        }
+    }
+
+    // A replica missed a batch; its sequenceNumber is as far as it got
+    private void handleReplicateNack(DSMMessage msg) {
+        if (replicationBatcher != null) {
+            replicationBatcher.resend(msg.getReplyToQueue(), msg.getSequenceNumber());
+        }
     }
 
 
 
+    // A replica parks a read until it has applied what the client has seen, and a snapshot read
+    // also until it has the snapshot
     private void handleRead(DSMMessage msg) {
-        if (msg.getSequenceNumber() > latestSequenceNumber.get()){
-            System.out.println("[" + name + "] Queuing READ for seq=" + msg.getSequenceNumber());
-            pendingReads.put(msg.getSequenceNumber(), () -> {
-                Integer value = storage.get(msg.getAddress().getValue());
-                if (msg.getReplyToQueue() != null) {
-                    try {
-                        messagingService.sendReply(msg.getReplyToQueue(), String.valueOf(value));
-                        System.out.println("[" + name + "] READ value " + value + " from address " + msg.getAddress().getValue());
-                    } catch (IOException e) {
-                        System.err.println("Failed to send reply: " + e.getMessage());
-                    }
-                }
-            });
-        }else{
-            Integer value = storage.get(msg.getAddress().getValue());
-            if (msg.getReplyToQueue() != null) {
-                try {
-                    messagingService.sendReply(msg.getReplyToQueue(), String.valueOf(value));
-                    System.out.println("[" + name + "] READ value " + value + " from address " + msg.getAddress().getValue());
-                } catch (IOException e) {
-                    System.err.println("Failed to send reply: " + e.getMessage());
-                }
+        long required = msg.getSequenceNumber();
+        if (msg.getType() == DSMMessage.Type.SNAPSHOT_READ && msg.getSequenceNumbers() != null && !isPrimary) {
+            required = Math.max(required, msg.getSequenceNumbers()[0]);
+        }
+        if (required > latestSequenceNumber.get() && pendingReads.park(msg, required)) {
+            tracer.record(Tracer.Event.READ_PARKED, msg);
+        } else {
+            serveRead(msg);
+        }
+    }
+
+    private void serveParkedRead(DSMMessage msg) {
+        tracer.record(Tracer.Event.READ_RELEASED, msg, latestSequenceNumber.get());
+        serveRead(msg);
+    }
+
+    // A read this replica could not serve in time goes to the primary, which is never behind.
+    private void readTimedOut(DSMMessage msg) {
+        String primary = partitionConfig.getGroup(ownerGroup(msg.getAddress().getValue())).get(0);
+        if (isPrimary || primary.equals(name)) {
+            serveRead(msg);
+            return;
+        }
+        tracer.record(Tracer.Event.READ_REDIRECTED, msg);
+        try {
+            messagingService.send(primary, msg);
+        } catch (IOException e) {
+            System.err.println("Failed to redirect read to " + primary + ": " + e.getMessage());
+        }
+    }
+
+    // Every write of a word under a sequence number goes through here, so versions see it too
+    private void store(int address, int value, long sequenceNumber) {
+        if (versions != null) {
+            versions.write(address, value, sequenceNumber);
+        } else {
+            storage.write(address, value);
+        }
+    }
+
+    // Sequence number up to which every write is in storage. On the primary the counter moves
+    // before the write lands, so it is read under the sequencer.
+    private long appliedSequenceNumber() {
+        if (!isPrimary) return latestSequenceNumber.get();
+        synchronized (sequencer) {
+            return latestSequenceNumber.get();
+        }
+    }
+
+    // All requested words as of one sequence number, read from the versions without locking. A
+    // replica only gets here once it has the snapshot (handleRead parks it until then); the primary
+    // has every write there is, so it answers one from the future as of what it has applied, and
+    // the reply's sequenceNumber says so.
+    private DSMMessage snapshotReply(DSMMessage msg) {
+        long applied = appliedSequenceNumber();
+        long snapshot = msg.getSequenceNumbers() != null ? Math.min(msg.getSequenceNumbers()[0], applied) : applied;
+        int[] addresses = msg.getAddresses();
+        int start = msg.getAddress().getValue();
+        int[] values = new int[addresses != null ? addresses.length : Math.max(0, msg.getValue() - start)];
+        boolean served = versions != null
+                && (addresses != null ? versions.readAt(addresses, snapshot, values) : versions.readRangeAt(start, snapshot, values));
+        if (!served) {
+            return new DSMMessage(DSMMessage.Type.SNAPSHOT_TOO_OLD, msg.getAddress(), 0, null,
+                    versions == null ? -1 : versions.lowWatermark(), msg.getCorrelationId());
+        }
+        return DSMMessage.reply(msg, values, snapshot);
+    }
+
+    private void serveRead(DSMMessage msg) {
+        if (msg.getReplyToQueue() == null) return;
+        DSMMessage reply;
+        switch (msg.getType()) {
+            case SNAPSHOT_READ -> reply = snapshotReply(msg);
+            case MGET -> {
+                int[] addresses = msg.getAddresses();
+                int[] values = new int[addresses.length];
+                for (int i = 0; i < addresses.length; i++) values[i] = storage.read(addresses[i]);
+                reply = DSMMessage.reply(msg, values, latestSequenceNumber.get());
+            }
+            case RANGE_READ -> {
+                int start = msg.getAddress().getValue();
+                int end = msg.getValue(); // exclusive
+                int[] values = new int[Math.max(0, end - start)];
+                for (int i = 0; i < values.length; i++) values[i] = storage.read(start + i);
+                reply = DSMMessage.reply(msg, values, latestSequenceNumber.get());
+            }
+            default -> {
+                int value = storage.read(msg.getAddress().getValue());
+                reply = DSMMessage.reply(msg, value, latestSequenceNumber.get());
             }
         }
+        try {
+            messagingService.sendReply(msg.getReplyToQueue(), reply);
+            tracer.record(Tracer.Event.READ_SERVED, msg, reply.getSequenceNumber());
+        } catch (IOException e) {
+            System.err.println("Failed to send reply: " + e.getMessage());
+        }
     }
 
     private void updateSequenceNumber(long newSequenceNumber) {
-        System.out.println("[" + name + "] Updating sequence number to: " + newSequenceNumber);
-        latestSequenceNumber.set(newSequenceNumber);
-        pendingReads.entrySet().removeIf(entry -> {
-            if (entry.getKey() <= latestSequenceNumber.get()) {
-                System.out.println("[" + name + "] Processing pending READ for seq=" + entry.getKey());
-                entry.getValue().run();
-                return true;
-            }
-            return false;
-        });
+        tracer.record(Tracer.Event.SEQUENCE_ADVANCED, null, -1, newSequenceNumber, 0, 0);
+        pendingReads.release(newSequenceNumber);
     }
 
     private void handleReplicate(DSMMessage msg) {
-        System.out.println("[" + name + "] Processing REPLICATE for seq=" + msg.getSequenceNumber());
-        int value = Integer.parseInt(msg.getValue());
-        storage.put(msg.getAddress().getValue(), value);
+        if (msg.getSequenceNumber() > latestSequenceNumber.get()) {
+            store(msg.getAddress().getValue(), msg.getValue(), msg.getSequenceNumber());
+            tracer.record(Tracer.Event.REPLICA_APPLIED, msg);
+            if (persistence != null) {
+                persistence.logWrite(msg.getSequenceNumber(), msg.getAddress().getValue(), msg.getValue());
+            }
+        }
+        applied(msg.getReplyToQueue(), msg.getSequenceNumber());
+    }
+
+    // Entries arrive in sequence order; ones this replica already has are skipped. A batch that does
+    // not follow on from what the replica has (correlationId is the previous batch) means one was lost:
+    // nothing is applied or acked past the gap, and the primary is asked to send again from here.
+    private void handleReplicateBatch(DSMMessage msg) {
+        int[] addresses = msg.getAddresses();
+        int[] values = msg.getValues();
+        long[] sequenceNumbers = msg.getSequenceNumbers();
+        long applied = latestSequenceNumber.get();
+        if (msg.getCorrelationId() > applied) {
+            replicationGaps.increment();
+            try {
+                messagingService.send(msg.getReplyToQueue(),
+                        new DSMMessage(DSMMessage.Type.REPLICATE_NACK, null, 0, this.name, applied));
+            } catch (IOException e) {
+                System.err.println("Failed to send REPLICATE_NACK: " + e.getMessage());
+            }
+            return;
+        }
+        int firstNew = 0;
+        while (firstNew < addresses.length && sequenceNumbers[firstNew] <= applied) firstNew++;
+        for (int i = firstNew; i < addresses.length; i++) {
+            store(addresses[i], values[i], sequenceNumbers[i]);
+        }
+        if (tracer.isEnabled(Tracer.Event.REPLICA_APPLIED)) {
+            int primary = Tracer.clientId(msg.getReplyToQueue());
+            for (int i = firstNew; i < addresses.length; i++) {
+                tracer.record(Tracer.Event.REPLICA_APPLIED, msg.getType(), addresses[i], sequenceNumbers[i], 0, primary);
+            }
+        }
+        if (persistence != null) {
+            persistence.logWrites(addresses, values, sequenceNumbers, firstNew, addresses.length);
+        }
+        applied(msg.getReplyToQueue(), msg.getSequenceNumber());
+    }
+
+    // Advances this replica to sequenceNumber, releases waiting reads and acks everything up to it.
+    // With persistence on, the ack waits until the log has made those writes durable, so a write
+    // the primary counts as on this replica survives a crash of it.
+    private void applied(String primary, long sequenceNumber) {
         // Update sequence number first
         latestSequenceNumber.updateAndGet(current ->
-                Math.max(current, msg.getSequenceNumber())
+                Math.max(current, sequenceNumber)
         );
         // Process pending reads with the new sequence number
         updateSequenceNumber(latestSequenceNumber.get());
 
-        // Send ACK back to primary
+        long acked = latestSequenceNumber.get();
+        if (persistence != null) {
+            synchronized (deferredAcks) {
+                long logged = persistence.getLoggedSequenceNumber();
+                if (logged > persistence.getDurableSequenceNumber()) {
+                    deferredAcks.addLast(new DeferredAck(primary, acked, logged));
+                    return;
+                }
+            }
+        }
+        sendReplicateAck(primary, acked);
+    }
+
+    // Replica: group commit made the log durable up to durable; sends the acks that were waiting on it.
+    private void ackDurable(long durable) {
+        Map<String, Long> ready = new HashMap<>();
+        synchronized (deferredAcks) {
+            DeferredAck ack;
+            while ((ack = deferredAcks.peekFirst()) != null && ack.logged() <= durable) {
+                deferredAcks.pollFirst();
+                ready.put(ack.primary(), ack.sequenceNumber());
+            }
+        }
+        ready.forEach(this::sendReplicateAck);
+    }
+
+    // Send one cumulative ACK back to primary
+    private void sendReplicateAck(String primary, long sequenceNumber) {
         DSMMessage ackMsg = new DSMMessage(
                 DSMMessage.Type.REPLICATE_ACK,
-                msg.getAddress(),
-                "ACK",
-                msg.getReplyToQueue(),
-                msg.getSequenceNumber()
+                null,
+                0,
+                this.name,
+                sequenceNumber
         );
         try {
-            messagingService.send(msg.getReplyToQueue(), ackMsg);
+            messagingService.send(primary, ackMsg);
         } catch (IOException e) {
             System.err.println("Failed to send REPLICATE_ACK: " + e.getMessage());
         }
     }
 
-    private void forwardMessage(DSMMessage msg) {
-        List<String> group = partitionConfig.getReplicationGroup(msg.getAddress());
+    private void forwardMessage(DSMMessage msg, int owner) {
+        List<String> group = partitionConfig.getGroup(owner);
         String targetNode;
-        if (msg.getType() == DSMMessage.Type.READ) {
-            if (group.size() > 1) {
-                List<String> replicas = group.subList(1, group.size());
-                targetNode = replicas.get(new Random().nextInt(replicas.size()));
-            } else {
-                // Fallback: if there's only one node, it’s effectively acting as both primary and replica
-                targetNode = group.get(1);
-            }
-//            targetNode = group.get(1);
+        if (msg.getType().isRead() && group.size() > 1) {
+            targetNode = replicaSelector.select(group.subList(1, group.size()), msg.getSequenceNumber());
         } else {
             targetNode = group.get(0);
         }
@@ -266,9 +804,392 @@ public class DSMNode {
     }
 
 
+    // Redirect carrying our epoch and routing table; owner is -1 if the request spans several groups
+    private void replyWrongOwner(DSMMessage msg, int owner) {
+        if (msg.getReplyToQueue() == null) return;
+        PartitionConfig config = partitionConfig;
+        DSMMessage reply = new DSMMessage(DSMMessage.Type.WRONG_OWNER, msg.getAddress(), owner, null,
+                config.getEpoch(), msg.getCorrelationId(), null, config.getRoutingTable(), null, config.getEpoch());
+        tracer.record(Tracer.Event.WRONG_OWNER, msg, config.getEpoch());
+        try {
+            messagingService.sendReply(msg.getReplyToQueue(), reply);
+        } catch (IOException e) {
+            System.err.println("Failed to send WRONG_OWNER reply: " + e.getMessage());
+        }
+    }
+
+    // A routing table pushed by the ConfigServer outside the message stream; same rules as a TOPOLOGY message
+    public void updateTopology(PartitionConfig config, boolean migrate) {
+        handleTopology(DSMMessage.topology(config, migrate));
+    }
+
+    // Switches to a newer routing table. With a migrating TOPOLOGY, every partition that moves into
+    // or out of this node's group becomes a handoff, and a primary losing partitions starts streaming them.
+    private void handleTopology(DSMMessage msg) {
+        List<Integer> outgoing = new ArrayList<>();
+        PartitionConfig next;
+        synchronized (topologyLock) {
+            PartitionConfig current = partitionConfig;
+            if (msg.getSequenceNumber() <= current.getEpoch()) return; // already there
+            next = current.withRoutingTable(msg.getValues(), msg.getSequenceNumber());
+            if (msg.getValue() == DSMMessage.TOPOLOGY_MIGRATE) {
+                for (int partitionID = 0; partitionID < next.getVirtualPartitionCount(); partitionID++) {
+                    int from = current.getGroupOfPartition(partitionID);
+                    int to = next.getGroupOfPartition(partitionID);
+                    if (from == to || (from != groupId && to != groupId)) continue;
+                    handoffs.put(partitionID, new Handoff(from, to));
+                    if (from == groupId && isPrimary) outgoing.add(partitionID);
+                }
+            }
+            partitionConfig = next;
+            if (merkleTree != null) {
+                // Only partitions this group gained or lost hash differently now
+                for (int partitionID = 0; partitionID < next.getVirtualPartitionCount(); partitionID++) {
+                    boolean ownedBefore = current.getGroupOfPartition(partitionID) == groupId;
+                    if (ownedBefore != (next.getGroupOfPartition(partitionID) == groupId)) {
+                        merkleTree.invalidate(partitionID);
+                    }
+                }
+            }
+            System.out.println("[" + name + "] Now at topology epoch " + next.getEpoch() + " with "
+                    + handoffs.size() + " partitions to hand off");
+            for (Iterator<DSMMessage> early = earlyHandoffs.values().iterator(); early.hasNext(); ) {
+                DSMMessage done = early.next();
+                if (done.getEpoch() <= next.getEpoch()) {
+                    early.remove();
+                    completeHandoff(done);
+                }
+            }
+        }
+        if (!outgoing.isEmpty()) {
+            Thread migration = new Thread(() -> streamPartitions(outgoing, next.getEpoch()), "migration-" + name);
+            migration.setDaemon(true);
+            migration.start();
+        }
+    }
+
+    // Old primary: copies each partition to its new primary in chunks while still serving it, then
+    // cuts over. Chunks, forwarded writes and the cutover all happen under the sequencer, so the new
+    // owner receives them in the same order the writes were applied here.
+    private void streamPartitions(List<Integer> partitions, long epoch) {
+        PartitionConfig config = partitionConfig;
+        for (int partitionID : partitions) {
+            Handoff handoff = handoffs.get(partitionID);
+            if (handoff == null) continue;
+            String target = config.getGroup(handoff.nextGroup).get(0);
+            int start = config.getPartitionStart(partitionID);
+            int end = config.getPartitionEnd(partitionID) + 1;
+            try {
+                for (int from = start; from < end; from += MIGRATION_CHUNK_WORDS) {
+                    int[] words = new int[Math.min(MIGRATION_CHUNK_WORDS, end - from)];
+                    synchronized (sequencer) {
+                        for (int i = 0; i < words.length; i++) words[i] = storage.read(from + i);
+                        messagingService.send(target, new DSMMessage(DSMMessage.Type.MIGRATE_CHUNK, new Address(from),
+                                0, name, latestSequenceNumber.get(), 0, null, words, null, epoch));
+                    }
+                }
+                synchronized (sequencer) {
+                    DSMMessage done = new DSMMessage(DSMMessage.Type.MIGRATE_DONE, new Address(start), partitionID,
+                            name, latestSequenceNumber.get(), 0, null, null, null, epoch);
+                    messagingService.send(target, done);
+                    for (String replica : replicaNodes) {
+                        messagingService.send(replica, done);
+                    }
+                    handoffs.remove(partitionID);
+                }
+            } catch (IOException e) {
+                // The handoff stays in place, so this node keeps serving the partition
+                System.err.println("[" + name + "] Migration of partition " + partitionID + " to " + target
+                        + " failed: " + e.getMessage());
+                return;
+            }
+        }
+        System.out.println("[" + name + "] Handed off " + partitions.size() + " partitions for epoch " + epoch);
+    }
+
+    // New primary: applies streamed words like a local write so they are logged and replicated.
+    private void applyMigrationChunk(DSMMessage msg) {
+        int[] values = msg.getValues();
+        int[] addresses = msg.getAddresses();
+        if (addresses == null) {
+            addresses = new int[values.length];
+            for (int i = 0; i < values.length; i++) addresses[i] = msg.getAddress().getValue() + i;
+        }
+        synchronized (sequencer) {
+            applyUnit(null, addresses, values);
+        }
+    }
+
+    // Old primary: passes writes to partitions it is still streaming on to their new primary.
+    // Caller holds the sequencer.
+    private void forwardToNewOwners(int[] addresses, int[] values) {
+        for (int i = 0; i < addresses.length; i++) {
+            Handoff handoff = handoffs.get(addresses[i] >>> partitionShift);
+            if (handoff == null || handoff.previousGroup != groupId) continue;
+            String target = partitionConfig.getGroup(handoff.nextGroup).get(0);
+            try {
+                messagingService.send(target, new DSMMessage(DSMMessage.Type.MIGRATE_CHUNK, new Address(addresses[i]),
+                        0, name, latestSequenceNumber.get(), 0, new int[] {addresses[i]}, new int[] {values[i]},
+                        null, partitionConfig.getEpoch()));
+            } catch (IOException e) {
+                System.err.println("[" + name + "] Failed to forward write to " + target + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleMigrationDone(DSMMessage msg) {
+        synchronized (topologyLock) {
+            if (msg.getEpoch() > partitionConfig.getEpoch()) {
+                earlyHandoffs.put(msg.getValue(), msg); // applied once our TOPOLOGY arrives
+                return;
+            }
+            completeHandoff(msg);
+        }
+    }
+
+    private void completeHandoff(DSMMessage msg) {
+        int partitionID = msg.getValue();
+        Handoff handoff = handoffs.get(partitionID);
+        if (handoff == null) return;
+        if (handoff.previousGroup == groupId) {
+            // Old replica: the partition now belongs to the new group
+            handoffs.remove(partitionID);
+        } else if (isPrimary) {
+            // New primary: skip ahead of every sequence number the old group handed out, so
+            // sequence numbers clients hold for this partition stay valid here
+            long fenced;
+            synchronized (sequencer) {
+                fenced = latestSequenceNumber.updateAndGet(current -> Math.max(current, msg.getSequenceNumber()));
+                if (replicationBatcher != null) {
+                    replicationBatcher.advanceTo(fenced);
+                }
+                handoffs.remove(partitionID);
+            }
+            pendingReads.release(fenced);
+            DSMMessage done = new DSMMessage(DSMMessage.Type.MIGRATE_DONE, msg.getAddress(), partitionID,
+                    name, fenced, 0, null, null, null, msg.getEpoch());
+            for (String replica : replicaNodes) {
+                try {
+                    messagingService.send(replica, done);
+                } catch (IOException e) {
+                    System.err.println("Failed to send MIGRATE_DONE to " + replica + ": " + e.getMessage());
+                }
+            }
+            System.out.println("[" + name + "] Took over partition " + partitionID + " at seq=" + fenced);
+        } else {
+            // New replica: serve the partition once replication has caught up with the cutover
+            handoff.readyAt = msg.getSequenceNumber();
+        }
+    }
+
+    // Replica: starts a comparison with the primary at the root of the tree.
+    private void startAntiEntropyRound() {
+        if (!handoffs.isEmpty() || !partitionConfig.hasPartitions(groupId)) return;
+        // Read before hashing: the primary ignores partitions it changed after this point
+        long applied = latestSequenceNumber.get();
+        int root = merkleTree.height() - 1;
+        sendSyncHashes(root, new int[] {0}, applied);
+    }
+
+    private void sendSyncHashes(int level, int[] nodes, long applied) {
+        PartitionConfig config = partitionConfig;
+        String primary = config.getGroup(groupId).get(0);
+        DSMMessage hashes = new DSMMessage(DSMMessage.Type.SYNC_HASHES, null, level, name, applied, 0,
+                nodes, null, merkleTree.hashes(level, nodes), config.getEpoch());
+        try {
+            messagingService.send(primary, hashes);
+        } catch (IOException e) {
+            System.err.println("[" + name + "] Failed to send SYNC_HASHES to " + primary + ": " + e.getMessage());
+        }
+    }
+
+    // Replica: answers with the hashes one level below the nodes the primary disagrees with.
+    private void handleSyncExpand(DSMMessage msg) {
+        if (merkleTree == null || msg.getEpoch() != partitionConfig.getEpoch()) return;
+        sendSyncHashes(msg.getValue() - 1, merkleTree.children(msg.getValue(), msg.getAddresses()), msg.getSequenceNumber());
+    }
+
+    // Primary: compares a replica's hashes with its own and drills into the nodes that differ. A
+    // partition written here after the sequence number the replica had applied is skipped, since
+    // the replica may simply not have seen that write yet.
+    private void handleSyncHashes(DSMMessage msg) {
+        if (!isPrimary || merkleTree == null || msg.getEpoch() != partitionConfig.getEpoch()
+                || !handoffs.isEmpty()) {
+            return;
+        }
+        int level = msg.getValue();
+        int[] nodes = msg.getAddresses();
+        long[] theirs = msg.getSequenceNumbers();
+        long[] ours = merkleTree.hashes(level, nodes);
+        long applied = msg.getSequenceNumber();
+        int[] differing = new int[nodes.length];
+        int count = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            if (ours[i] != theirs[i] && (level > 0 || !merkleTree.modifiedAfter(nodes[i], applied))) {
+                differing[count++] = nodes[i];
+            }
+        }
+        if (count == 0) return;
+        differing = Arrays.copyOf(differing, count);
+        if (level == 0) {
+            repairPartitions(msg.getReplyToQueue(), differing, applied);
+            return;
+        }
+        DSMMessage expand = new DSMMessage(DSMMessage.Type.SYNC_EXPAND, null, level, name, applied, 0,
+                differing, null, null, partitionConfig.getEpoch());
+        try {
+            messagingService.send(msg.getReplyToQueue(), expand);
+        } catch (IOException e) {
+            System.err.println("[" + name + "] Failed to send SYNC_EXPAND: " + e.getMessage());
+        }
+    }
+
+    // Primary: sends the current contents of diverged partitions to the one replica that reported
+    // them, outside the replication stream, so the other replicas and the sequence are untouched.
+    // Only partitions not written here since the replica's applied sequence are sent: no batch the
+    // replica has yet to apply touches them, and any later write reaches it after this repair.
+    private void repairPartitions(String replica, int[] partitions, long applied) {
+        int repaired = 0;
+        DSMMessage repair;
+        synchronized (sequencer) {
+            if (!handoffs.isEmpty()) return;
+            PartitionConfig config = partitionConfig;
+            int words = 0;
+            for (int partitionID : partitions) {
+                if (config.getGroupOfPartition(partitionID) != groupId || merkleTree.modifiedAfter(partitionID, applied)) continue;
+                int size = config.getPartitionEnd(partitionID) - config.getPartitionStart(partitionID) + 1;
+                if (words > 0 && words + size > MAX_REPAIR_WORDS) break;
+                words += size;
+                partitions[repaired++] = partitionID;
+            }
+            if (repaired == 0) return;
+            int[] addresses = new int[words];
+            int[] values = new int[words];
+            int i = 0;
+            for (int p = 0; p < repaired; p++) {
+                for (int address = config.getPartitionStart(partitions[p]); address <= config.getPartitionEnd(partitions[p]); address++) {
+                    addresses[i] = address;
+                    values[i++] = storage.read(address);
+                }
+            }
+            repair = new DSMMessage(DSMMessage.Type.SYNC_REPAIR, null, repaired, name, applied, 0,
+                    addresses, values, null, config.getEpoch());
+        }
+        try {
+            messagingService.send(replica, repair);
+            repairedPartitions.add(repaired);
+        } catch (IOException e) {
+            System.err.println("[" + name + "] Failed to send SYNC_REPAIR to " + replica + ": " + e.getMessage());
+        }
+    }
+
+    // Replica: overwrites the repaired words. Runs on the same worker as this primary's batches; a
+    // partition a batch has changed here since the comparison started already has newer words from
+    // the primary, so it is left for the next round. The words are stored, and logged, at the
+    // sequence number this replica is at.
+    private void applyRepair(DSMMessage msg) {
+        if (merkleTree == null || msg.getEpoch() != partitionConfig.getEpoch() || !handoffs.isEmpty()) return;
+        int[] addresses = msg.getAddresses();
+        int[] values = msg.getValues();
+        long since = msg.getSequenceNumber();
+        long current = latestSequenceNumber.get();
+        if (since == 0 && current > 0) return; // writes since then cannot be told from untouched partitions
+        int[] kept = new int[addresses.length];
+        int count = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            int partitionID = addresses[i] >>> partitionShift;
+            // Writes are tagged with the sequence the replica was at before their batch, so one
+            // applied after the comparison started carries at least since
+            if (current > 0 && merkleTree.modifiedAfter(partitionID, since - 1)) continue;
+            store(addresses[i], values[i], current);
+            kept[count++] = i;
+        }
+        if (count == 0) return;
+        if (persistence != null && current > 0) {
+            int[] keptAddresses = new int[count];
+            int[] keptValues = new int[count];
+            for (int i = 0; i < count; i++) {
+                keptAddresses[i] = addresses[kept[i]];
+                keptValues[i] = values[kept[i]];
+            }
+            persistence.logWrite(keptAddresses, keptValues, current);
+        }
+    }
+
+    private void registerGauges() {
+        metrics.gauge("dsm_sequence_number", "Latest sequence number applied", latestSequenceNumber::get);
+        metrics.gauge("dsm_pending_replications", "Primary: writes not yet acknowledged to their client",
+                pendingWriteCount::get);
+        metrics.gauge("dsm_pending_reads", "Replica: reads parked until replication catches up", pendingReads::size);
+        metrics.gauge("dsm_worker_queue_depth", "Messages waiting for a worker thread", dispatcher::queueDepth);
+        if (isPrimary) {
+            for (String replica : replicaNodes) {
+                metrics.gauge("dsm_replica_lag", "Primary: sequence numbers a replica has not acknowledged yet",
+                        () -> latestSequenceNumber.get() - acknowledgedSequenceNumbers.getOrDefault(replica, 0L),
+                        "replica", replica);
+            }
+        }
+        if (versions != null) {
+            metrics.gauge("dsm_mvcc_chains", "Addresses keeping older versions for snapshot reads", versions::chainCount);
+            metrics.gauge("dsm_mvcc_low_watermark", "Oldest sequence number snapshot reads can still ask for",
+                    versions::lowWatermark);
+        }
+        metrics.counter("dsm_trace_dropped_total", "Trace events dropped because the ring buffer was full",
+                () -> tracer.dropped());
+        metrics.register();
+        MetricsServer.ensureStarted();
+    }
+
     public void start() throws IOException {
-        messagingService.startMessageListener(this.name, this::handleMessage);
-        System.out.println("DSMNode " + name + " is now listening for messages.");
+        tracer = Tracer.forNode(name);
+        if (persistence != null) {
+            latestSequenceNumber.set(persistence.recover());
+            pendingReads.release(latestSequenceNumber.get());
+            if (isPrimary) {
+                persistence.start(durable -> decrementPendingReplications(LOCAL_LOG, durable));
+            } else {
+                persistence.start(this::ackDurable);
+            }
+        }
+        if (partitionConfig != null) {
+            merkleTree = new MerkleTree(storage, partitionConfig, latestSequenceNumber::get,
+                    partitionID -> partitionConfig.getGroupOfPartition(partitionID) == groupId);
+            storage = merkleTree.tracking();
+        }
+        if (isPrimary && !replicaNodes.isEmpty()) {
+            replicationBatcher = new ReplicationBatcher(name, replicaNodes, messagingService, latestSequenceNumber.get());
+        }
+        if (MultiVersionStore.DEFAULT_MAX_VERSIONS > 0) {
+            versions = new MultiVersionStore(storage, MultiVersionStore.DEFAULT_MAX_VERSIONS);
+            versionCollector = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "mvcc-gc-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            versionCollector.scheduleWithFixedDelay(() -> versions.collect(
+                            latestSequenceNumber.get() - MultiVersionStore.DEFAULT_RETAIN_SEQUENCES),
+                    MVCC_GC_INTERVAL_MILLIS, MVCC_GC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        dispatcher = new StripedDispatcher(name, StripedDispatcher.DEFAULT_WORKERS,
+                StripedDispatcher.DEFAULT_QUEUE_CAPACITY, this::handleMessage);
+        registerGauges();
+        messagingService.startMessageListener(this.name, this::dispatch);
+        if (!isPrimary && merkleTree != null && groupId >= 0 && ANTI_ENTROPY_INTERVAL_MILLIS > 0) {
+            antiEntropy = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "anti-entropy-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            antiEntropy.scheduleWithFixedDelay(() -> {
+                try {
+                    startAntiEntropyRound();
+                } catch (RuntimeException e) {
+                    System.err.println("[" + name + "] Anti-entropy round failed: " + e.getMessage());
+                }
+            }, ANTI_ENTROPY_INTERVAL_MILLIS, ANTI_ENTROPY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        System.out.println("DSMNode " + name + " is now listening for messages on "
+                + dispatcher.getWorkerCount() + " workers.");
     }
 
     // Getters
@@ -277,5 +1198,6 @@ public class DSMNode {
     public int getEndAddress() { return endAddress; }
     public boolean isPrimary() { return isPrimary; }
     public List<String> getReplicaNodes() { return replicaNodes; }
+    public long getTopologyEpoch() { return partitionConfig.getEpoch(); }
 }
 
@@ -4,44 +4,42 @@ public class DSMNodeFactory {
     public static List<DSMNode> createNodesFrom(PartitionConfig config) {
         List<DSMNode> dsmNodes = new ArrayList<>();
 
-        Map<Integer, List<String>> partitionGroups = config.getPartitionGroups();
-        int totalAddresses = config.getTotalAddresses();
-        int numPartitions = partitionGroups.size();
-        if (numPartitions == 0) {
-            throw new IllegalStateException("PartitionConfig has no partitions.");
+        List<List<String>> groups = config.getReplicationGroups();
+        if (groups.isEmpty()) {
+            throw new IllegalStateException("PartitionConfig has no replication groups.");
         }
 
+        for (List<String> group : groups) {
+            for (String nodeName : group) {
+                dsmNodes.add(createNode(config, nodeName));
+            }
+        }
 
-        int partitionSize = totalAddresses / numPartitions;
-
-        // For each partition, We compute the address range and assign nodes
-        for (Map.Entry<Integer, List<String>> entry : partitionGroups.entrySet()) {
-            int partitionID = entry.getKey();
-            List<String> group = entry.getValue();
+        return dsmNodes;
+    }
 
-            // Start/end addresses for this partition
-            int start = partitionID * partitionSize;
-            // If this is the last partition, take all remaining addresses
-            int end = (partitionID == numPartitions - 1)
-                    ? (totalAddresses - 1)
-                    : (start + partitionSize - 1);
+    // Builds the runtime for one node of the config; the caller still injects config and messaging
+    public static DSMNode createNode(PartitionConfig config, String nodeName) {
+        int groupID = config.getGroupOfNode(nodeName);
+        if (groupID < 0) {
+            throw new IllegalArgumentException("Node " + nodeName + " is not part of the config");
+        }
+        List<String> group = config.getGroup(groupID);
 
-            // The first node in 'group' is primary, others are replicas
-            for (int i = 0; i < group.size(); i++) {
-                String nodeName = group.get(i);
-                boolean isPrimary = (i == 0);
+        // Lowest to highest address the group owns; with non-RANGE mappings the span
+        // has holes owned by other groups, but storage pages are only allocated when written.
+        // Standby groups that own nothing yet get the whole address space.
+        boolean owning = config.hasPartitions(groupID);
+        int start = owning ? config.getGroupStart(groupID) : 0;
+        int end = owning ? config.getGroupEnd(groupID) : config.getTotalAddresses() - 1;
 
-                // Replicas are all the other nodes in the same group
-                List<String> replicas = new ArrayList<>(group);
-                replicas.remove(nodeName);
+        // The first node in 'group' is primary, others are replicas
+        boolean isPrimary = group.get(0).equals(nodeName);
 
-                // Create the DSMNode and add them to the list of Nodes
-                DSMNode dsmNode = new DSMNode(nodeName, start, end, isPrimary, replicas);
-                dsmNodes.add(dsmNode);
-            }
-        }
+        // Replicas are all the other nodes in the same group
+        List<String> replicas = new ArrayList<>(group);
+        replicas.remove(nodeName);
 
-        return dsmNodes;
+        return new DSMNode(nodeName, start, end, isPrimary, replicas);
     }
 }
-
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Broker-free {@link MessagingService} for running a whole cluster inside one JVM.
+ * One instance is shared by every node and client in the process. Each queue name
+ * maps to a bounded lock-free mailbox that is drained by its own thread, so the
+ * threading model matches the one-consumer-per-queue behaviour of RabbitMQ.
+ *
+ * Messages are handed over by reference unless a codec is supplied, in which case
+ * every message is encoded and decoded to include serialization cost in measurements.
+ */
+public class InMemoryMessagingService implements MessagingService {
+    private static final int DEFAULT_MAILBOX_CAPACITY = Integer.getInteger("dsm.inmemory.mailboxCapacity", 65536);
+
+    private final MailboxRegistry<DSMMessage> messageMailboxes;
+    private final MailboxRegistry<DSMMessage> replyMailboxes;
+    private final MessageCodec codec;
+
+    public InMemoryMessagingService() {
+        this(null, DEFAULT_MAILBOX_CAPACITY);
+    }
+
+    public InMemoryMessagingService(MessageCodec codec, int mailboxCapacity) {
+        this.codec = codec;
+        this.messageMailboxes = new MailboxRegistry<>(mailboxCapacity);
+        this.replyMailboxes = new MailboxRegistry<>(mailboxCapacity);
+    }
+
+    @Override
+    public void send(String queue, DSMMessage msg) throws IOException {
+        if (codec != null) {
+            msg = codec.decode(codec.encode(msg));
+        }
+        messageMailboxes.get(queue).put(msg);
+    }
+
+    @Override
+    public void sendReply(String replyQueue, DSMMessage reply) throws IOException {
+        if (codec != null) {
+            reply = codec.decode(codec.encode(reply));
+        }
+        replyMailboxes.get(replyQueue).put(reply);
+    }
+
+    @Override
+    public void startMessageListener(String queueName, Consumer<DSMMessage> handler) {
+        messageMailboxes.get(queueName).start(handler);
+    }
+
+    @Override
+    public void startReplyListener(String replyQueue, Consumer<DSMMessage> handler) {
+        replyMailboxes.get(replyQueue).start(handler);
+    }
+
+    // Number of messages waiting in a node's mailbox
+    public int queueDepth(String queueName) {
+        return messageMailboxes.get(queueName).size();
+    }
+
+    public void close() {
+        messageMailboxes.mailboxes.values().forEach(Mailbox::stop);
+        replyMailboxes.mailboxes.values().forEach(Mailbox::stop);
+    }
+
+    // Queue name -> mailbox; mailboxes are created on first use, like a queueDeclare.
+    private static class MailboxRegistry<T> {
+        private final ConcurrentHashMap<String, Mailbox<T>> mailboxes = new ConcurrentHashMap<>();
+        private final int capacity;
+
+        MailboxRegistry(int capacity) {
+            this.capacity = capacity;
+        }
+
+        Mailbox<T> get(String name) {
+            Mailbox<T> mailbox = mailboxes.get(name);
+            return mailbox != null ? mailbox : mailboxes.computeIfAbsent(name, n -> new Mailbox<>(n, capacity));
+        }
+    }
+}
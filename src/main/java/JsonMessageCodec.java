@@ -0,0 +1,50 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Human-readable JSON encoding, kept for debugging with broker tooling.
+ * Understands binary frames as well so it can be switched on for a single node.
+ */
+public class JsonMessageCodec implements MessageCodec {
+    public static final byte MARKER = '{';
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private BinaryMessageCodec binary; // only created if a binary frame shows up
+
+    @Override
+    public void encode(DSMMessage msg, ByteBuffer out) {
+        out.put(encode(msg));
+    }
+
+    // JSON has no cheap size estimate; this codec is meant for debugging, not throughput
+    @Override
+    public int encodedSize(DSMMessage msg) {
+        return encode(msg).length;
+    }
+
+    @Override
+    public byte[] encode(DSMMessage msg) {
+        try {
+            return objectMapper.writeValueAsBytes(msg);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public DSMMessage decode(ByteBuffer in) {
+        if (in.get(in.position()) != MARKER) {
+            if (binary == null) binary = new BinaryMessageCodec();
+            return binary.decode(in);
+        }
+        byte[] bytes = new byte[in.remaining()];
+        in.get(bytes);
+        try {
+            return objectMapper.readValue(bytes, DSMMessage.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Power-of-two-choices over the replicas that are known to have the sequence number a read
+ * needs (all of them if none is known to). Of two random candidates the one with the lower
+ * expected wait wins, estimated as (outstanding reads + 1) * EWMA response latency.
+ *
+ * <p>Sampling two instead of scanning for the global minimum keeps many independent
+ * selectors (every client and node has one) from stampeding onto the same replica.
+ */
+public class LeastLoadedReplicaSelector implements ReplicaSelector {
+    // Weight of the newest latency sample in the moving average
+    private static final double EWMA_ALPHA = 0.2;
+
+    private static final class Stats {
+        final AtomicInteger outstanding = new AtomicInteger();
+        // Updated without a lock: a lost sample only nudges the average a little less
+        volatile double ewmaLatencyNanos;
+        volatile long knownSequence;
+    }
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    @Override
+    public String select(List<String> replicas, long requiredSequence) {
+        int count = replicas.size();
+        if (count == 1) return replicas.get(0);
+
+        // Only sample among caught-up replicas when at least two are; a single one just wins
+        int caughtUp = 0;
+        String onlyCaughtUp = null;
+        for (int i = 0; i < count; i++) {
+            if (stats(replicas.get(i)).knownSequence >= requiredSequence) {
+                caughtUp++;
+                onlyCaughtUp = replicas.get(i);
+            }
+        }
+        if (caughtUp == 1) return onlyCaughtUp;
+        boolean filter = caughtUp > 1;
+        int pool = filter ? caughtUp : count;
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(pool);
+        int second = random.nextInt(pool - 1);
+        if (second >= first) second++;
+        String a = nth(replicas, first, filter, requiredSequence);
+        String b = nth(replicas, second, filter, requiredSequence);
+        return cost(a) <= cost(b) ? a : b;
+    }
+
+    @Override
+    public void onSend(String replica) {
+        stats(replica).outstanding.incrementAndGet();
+    }
+
+    @Override
+    public void onReply(String replica, long latencyNanos, long sequence) {
+        Stats s = stats(replica);
+        s.outstanding.decrementAndGet();
+        double previous = s.ewmaLatencyNanos;
+        s.ewmaLatencyNanos = previous == 0 ? latencyNanos : previous + EWMA_ALPHA * (latencyNanos - previous);
+        if (sequence > s.knownSequence) s.knownSequence = sequence;
+    }
+
+    @Override
+    public void onFailure(String replica) {
+        stats(replica).outstanding.decrementAndGet();
+    }
+
+    @Override
+    public void onSequence(String replica, long sequence) {
+        Stats s = stats(replica);
+        if (sequence > s.knownSequence) s.knownSequence = sequence;
+    }
+
+    private double cost(String replica) {
+        Stats s = stats(replica);
+        // Replicas without a sample yet look as fast as possible, so they get tried
+        return (s.outstanding.get() + 1) * Math.max(1.0, s.ewmaLatencyNanos);
+    }
+
+    // The index-th replica, counting only the caught-up ones when filtering
+    private String nth(List<String> replicas, int index, boolean filter, long requiredSequence) {
+        if (!filter) return replicas.get(index);
+        for (String replica : replicas) {
+            if (stats(replica).knownSequence >= requiredSequence && index-- == 0) return replica;
+        }
+        throw new IllegalStateException("Replica list changed during selection");
+    }
+
+    private Stats stats(String replica) {
+        Stats s = stats.get(replica);
+        return s != null ? s : stats.computeIfAbsent(replica, r -> new Stats());
+    }
+}
@@ -0,0 +1,362 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator. Requests are issued on a fixed schedule of {@code dsm.load.rate}
+ * requests per second, split over the issuing threads, and each request's latency is measured
+ * from the time the schedule says it should have been sent, not from when it actually was. A
+ * stalled cluster therefore shows up as the latency every scheduled request would have seen
+ * (no coordinated omission), instead of as a generator that quietly slowed down. Requests still
+ * unanswered {@code dsm.load.drainSeconds} after the schedule ends are recorded at the latency
+ * they had reached by then and reported as unfinished.
+ *
+ * <pre>
+ *   java LoadGenerator [--local] [request_file]
+ *     --local        run against an in-process cluster instead of the one ConfigServer describes
+ *     request_file   replay read/write lines from this file (cycling) instead of generating them
+ *
+ *   -Ddsm.load.threads=8             issuing threads
+ *   -Ddsm.load.virtualThreads=false  issue from virtual threads instead of platform threads
+ *   -Ddsm.load.rate=10000            requests per second over all threads; 0 = closed loop, as fast as
+ *                                    replies come back (latency then suffers coordinated omission)
+ *   -Ddsm.load.durationSeconds=10    measured part of the run
+ *   -Ddsm.load.warmupSeconds=2       run before measuring
+ *   -Ddsm.load.drainSeconds=10       how long to wait for the last replies once the schedule ends
+ *   -Ddsm.load.readRatio=0.9         fraction of generated requests that are reads
+ *   -Ddsm.load.keys=uniform          uniform | zipf | sequential | hotspot
+ *   -Ddsm.load.zipfTheta=0.99        skew of zipf; hot keys are scattered over the address space
+ *   -Ddsm.load.hotspotFraction=0.1   hotspot: share of the address space that is hot ...
+ *   -Ddsm.load.hotspotOps=0.9        ... and the share of requests that go to it
+ *   -Ddsm.load.csv=path -Ddsm.load.json=path   also write the results there
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final int THREADS = Integer.getInteger("dsm.load.threads", 8);
+    private static final boolean VIRTUAL_THREADS = Boolean.getBoolean("dsm.load.virtualThreads");
+    private static final double RATE = Double.parseDouble(System.getProperty("dsm.load.rate", "10000"));
+    private static final double DURATION_SECONDS = Double.parseDouble(System.getProperty("dsm.load.durationSeconds", "10"));
+    private static final double WARMUP_SECONDS = Double.parseDouble(System.getProperty("dsm.load.warmupSeconds", "2"));
+    private static final double DRAIN_SECONDS = Double.parseDouble(System.getProperty("dsm.load.drainSeconds", "10"));
+    private static final double READ_RATIO = Double.parseDouble(System.getProperty("dsm.load.readRatio", "0.9"));
+    private static final String KEYS = System.getProperty("dsm.load.keys", "uniform").toLowerCase(Locale.ROOT);
+    private static final double ZIPF_THETA = Double.parseDouble(System.getProperty("dsm.load.zipfTheta", "0.99"));
+    private static final double HOTSPOT_FRACTION = Double.parseDouble(System.getProperty("dsm.load.hotspotFraction", "0.1"));
+    private static final double HOTSPOT_OPS = Double.parseDouble(System.getProperty("dsm.load.hotspotOps", "0.9"));
+
+    // One request: a read when isWrite is false
+    private record Op(boolean isWrite, int address, int value) {}
+
+    private interface Workload {
+        Op next(ThreadLocalRandom random);
+    }
+
+    // Latency and outcome of every measured request of one kind
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder unfinished = new LongAdder(); // still unanswered when the drain gave up
+    }
+
+    // A request on its way; whoever claims it first (its reply or the drain deadline) records it
+    private record InFlight(Stats stats, long scheduledNanos, boolean measured, AtomicBoolean claimed) {
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    private final DSMClient client;
+    private final Workload workload;
+    private final Stats reads = new Stats();
+    private final Stats writes = new Stats();
+    private final Set<InFlight> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicLong lastCompletion = new AtomicLong(Long.MIN_VALUE); // nanoTime of the latest measured reply
+
+    public LoadGenerator(DSMClient client, Workload workload) {
+        this.client = client;
+        this.workload = workload;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean local = false;
+        String replayFile = null;
+        for (String arg : args) {
+            if (arg.equals("--local")) {
+                local = true;
+            } else {
+                replayFile = arg;
+            }
+        }
+
+        LocalCluster cluster = null;
+        ConfigSubscriber subscriber = null;
+        MessagingService messaging;
+        PartitionConfig config;
+        if (local) {
+            InMemoryMessagingService inMemory = new InMemoryMessagingService();
+            cluster = new LocalCluster(ConfigServer.createPartitionConfig(), inMemory);
+            cluster.start();
+            messaging = inMemory;
+            config = cluster.getPartitionConfig();
+        } else {
+            subscriber = ConfigSubscriber.start("client");
+            Topology topology = subscriber.awaitTopology();
+            messaging = MessagingService.fromSystemProperties(null, topology);
+            config = topology.toPartitionConfig();
+        }
+
+        Workload workload = replayFile != null ? replay(Files.readAllLines(Path.of(replayFile)))
+                : generated(config.getTotalAddresses());
+        try (DSMClient client = new DSMClient(messaging, config)) {
+            if (subscriber != null) subscriber.subscribe((next, pushed) -> client.updateTopology(next.toPartitionConfig()));
+            LoadGenerator generator = new LoadGenerator(client, workload);
+            double seconds = generator.run();
+            generator.report(System.out, seconds);
+        } finally {
+            if (cluster != null) cluster.stop();
+            else messaging.close();
+            if (subscriber != null) subscriber.close();
+        }
+        System.exit(0);
+    }
+
+    // Runs warmup and measurement; returns the length of the measured window in seconds
+    public double run() throws InterruptedException {
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        long measureFrom = start + (long) (WARMUP_SECONDS * 1e9);
+        long end = measureFrom + (long) (DURATION_SECONDS * 1e9);
+        ExecutorService issuers = VIRTUAL_THREADS ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(THREADS);
+        for (int thread = 0; thread < THREADS; thread++) {
+            int lane = thread;
+            issuers.execute(() -> issue(lane, start, measureFrom, end));
+        }
+        issuers.shutdown();
+        issuers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        // Let the last requests finish; they still count against their scheduled time
+        long drainDeadline = System.nanoTime() + (long) (DRAIN_SECONDS * 1e9);
+        while (!inFlight.isEmpty() && System.nanoTime() < drainDeadline) {
+            Thread.sleep(1);
+        }
+        // Whatever is left has taken at least this long; leaving it out would hide exactly the stall
+        boolean gaveUp = false;
+        long now = System.nanoTime();
+        for (InFlight request : inFlight) {
+            if (!request.measured() || !request.claim()) continue;
+            request.stats().latency.record(now - request.scheduledNanos());
+            request.stats().unfinished.increment();
+            gaveUp = true;
+        }
+        long last = gaveUp ? now : lastCompletion.get();
+        return last > measureFrom ? (last - measureFrom) / 1e9 : DURATION_SECONDS;
+    }
+
+    private void issue(int lane, long start, long measureFrom, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (RATE <= 0) {
+            // Closed loop: next request as soon as the previous one is answered
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                if (now < start) {
+                    LockSupport.parkNanos(start - now);
+                    continue;
+                }
+                try {
+                    send(workload.next(random), now, now >= measureFrom).join();
+                } catch (RuntimeException e) {
+                    // counted in send
+                }
+            }
+            return;
+        }
+        // Open loop: this lane owns every THREADS-th slot of the global schedule
+        double intervalNanos = 1e9 / RATE;
+        for (long slot = lane; ; slot += THREADS) {
+            long scheduled = start + (long) (slot * intervalNanos);
+            if (scheduled >= end) return;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            send(workload.next(random), scheduled, scheduled >= measureFrom);
+        }
+    }
+
+    private CompletableFuture<?> send(Op op, long scheduledNanos, boolean measured) {
+        InFlight tracked = new InFlight(op.isWrite() ? writes : reads, scheduledNanos, measured, new AtomicBoolean());
+        inFlight.add(tracked);
+        CompletableFuture<?> request = op.isWrite() ? client.write(op.address(), op.value()) : client.read(op.address());
+        return request.whenComplete((result, error) -> {
+            inFlight.remove(tracked);
+            if (!measured || !tracked.claim()) return;
+            long now = System.nanoTime();
+            lastCompletion.accumulateAndGet(now, Math::max);
+            if (error != null) {
+                tracked.stats().errors.increment();
+            } else {
+                tracked.stats().latency.record(now - scheduledNanos);
+            }
+        });
+    }
+
+    public void report(PrintStream out, double seconds) throws Exception {
+        Map<String, Map<String, Object>> results = new LinkedHashMap<>();
+        results.put("read", summary(reads, seconds));
+        results.put("write", summary(writes, seconds));
+
+        out.printf("%-6s %10s %12s %10s %10s %10s %10s %8s %10s%n",
+                "op", "count", "ops/s", "p50us", "p99us", "p999us", "maxus", "errors", "unfinished");
+        for (Map.Entry<String, Map<String, Object>> entry : results.entrySet()) {
+            Map<String, Object> r = entry.getValue();
+            out.printf("%-6s %10d %12.0f %10.1f %10.1f %10.1f %10.1f %8d %10d%n", entry.getKey(), r.get("count"),
+                    r.get("throughput"), r.get("p50_us"), r.get("p99_us"), r.get("p999_us"), r.get("max_us"), r.get("errors"),
+                    r.get("unfinished"));
+        }
+        out.printf("measured window %.3f s%n", seconds);
+        out.printf("busy replies %d, client window %d%n", client.getBusyReplies(), client.getWindow());
+
+        String csv = System.getProperty("dsm.load.csv");
+        if (csv != null) {
+            StringBuilder text = new StringBuilder("op,count,throughput,p50_us,p99_us,p999_us,max_us,errors,unfinished\n");
+            for (Map.Entry<String, Map<String, Object>> entry : results.entrySet()) {
+                text.append(entry.getKey());
+                for (Object value : entry.getValue().values()) text.append(',').append(value);
+                text.append('\n');
+            }
+            Files.writeString(Path.of(csv), text);
+        }
+        String json = System.getProperty("dsm.load.json");
+        if (json != null) {
+            Map<String, Object> document = new LinkedHashMap<>();
+            document.put("rate", RATE);
+            document.put("threads", THREADS);
+            document.put("virtualThreads", VIRTUAL_THREADS);
+            document.put("durationSeconds", seconds);
+            document.put("keys", KEYS);
+            document.put("busyReplies", client.getBusyReplies());
+            document.put("results", results);
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(Path.of(json).toFile(), document);
+        }
+    }
+
+    private static Map<String, Object> summary(Stats stats, double seconds) {
+        Map<String, Object> r = new LinkedHashMap<>();
+        long count = stats.latency.count();
+        r.put("count", count);
+        r.put("throughput", count / seconds);
+        r.put("p50_us", stats.latency.valueAtQuantile(0.5) / 1000.0);
+        r.put("p99_us", stats.latency.valueAtQuantile(0.99) / 1000.0);
+        r.put("p999_us", stats.latency.valueAtQuantile(0.999) / 1000.0);
+        r.put("max_us", stats.latency.valueAtQuantile(1.0) / 1000.0);
+        r.put("errors", stats.errors.sum());
+        r.put("unfinished", stats.unfinished.sum());
+        return r;
+    }
+
+    // Cycles through the read/write lines of a request file, in order across all threads
+    private static Workload replay(List<String> lines) {
+        List<Op> ops = new ArrayList<>();
+        for (String line : lines) {
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens.length >= 2 && tokens[0].equalsIgnoreCase("read")) {
+                ops.add(new Op(false, Integer.parseInt(tokens[1]), 0));
+            } else if (tokens.length >= 3 && tokens[0].equalsIgnoreCase("write")) {
+                ops.add(new Op(true, Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2])));
+            }
+        }
+        if (ops.isEmpty()) throw new IllegalArgumentException("No read/write lines to replay");
+        AtomicLong next = new AtomicLong();
+        return random -> ops.get((int) (next.getAndIncrement() % ops.size()));
+    }
+
+    private static Workload generated(int totalAddresses) {
+        KeyChooser keys = switch (KEYS) {
+            case "uniform" -> random -> random.nextInt(totalAddresses);
+            case "sequential" -> {
+                AtomicLong next = new AtomicLong();
+                yield random -> (int) (next.getAndIncrement() % totalAddresses);
+            }
+            case "hotspot" -> {
+                int hot = Math.max(1, (int) (totalAddresses * HOTSPOT_FRACTION));
+                yield random -> random.nextDouble() < HOTSPOT_OPS || hot == totalAddresses
+                        ? random.nextInt(hot) : hot + random.nextInt(totalAddresses - hot);
+            }
+            case "zipf" -> new Zipf(totalAddresses, ZIPF_THETA);
+            default -> throw new IllegalArgumentException("Unknown key distribution: " + KEYS);
+        };
+        return random -> {
+            int address = keys.next(random);
+            return random.nextDouble() < READ_RATIO ? new Op(false, address, 0) : new Op(true, address, random.nextInt());
+        };
+    }
+
+    private interface KeyChooser {
+        int next(ThreadLocalRandom random);
+    }
+
+    // Zipfian ranks as in YCSB (Gray et al.), scattered over the address space so the hot keys
+    // do not all sit in the first partition. The scattering multiplies by a step coprime to n,
+    // modulo n, which maps [0, n) onto itself one to one.
+    private static final class Zipf implements KeyChooser {
+        private final int n;
+        private final long step;
+        private final double theta;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        Zipf(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            double zeta = 0;
+            for (int i = 1; i <= n; i++) zeta += 1 / Math.pow(i, theta);
+            this.zetaN = zeta;
+            double zeta2 = 1 + 1 / Math.pow(2, theta);
+            this.alpha = 1 / (1 - theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+            long step = Math.max(1, (long) (n * 0.6180339887498949)); // golden ratio spreads neighbours apart
+            while (gcd(step, n) != 1) step++;
+            this.step = step;
+        }
+
+        private static long gcd(long a, long b) {
+            while (b != 0) {
+                long t = a % b;
+                a = b;
+                b = t;
+            }
+            return a;
+        }
+
+        @Override
+        public int next(ThreadLocalRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            long rank;
+            if (uz < 1) {
+                rank = 0;
+            } else if (uz < 1 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+            }
+            return (int) (rank * step % n); // both below 2^31, so the product cannot overflow
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the ConfigServer topology, every node and a client inside a single JVM,
+ * connected through {@link InMemoryMessagingService} instead of RabbitMQ.
+ */
+public class LocalCluster {
+    private PartitionConfig partitionConfig;
+    private final InMemoryMessagingService messaging;
+    private final List<DSMNode> nodes;
+
+    public LocalCluster(PartitionConfig partitionConfig, InMemoryMessagingService messaging) {
+        this.partitionConfig = partitionConfig;
+        this.messaging = messaging;
+        this.nodes = DSMNodeFactory.createNodesFrom(partitionConfig);
+    }
+
+    public void start() throws Exception {
+        String dataDir = System.getProperty("dsm.dataDir");
+        for (DSMNode node : nodes) {
+            node.setPartitionConfig(partitionConfig);
+            node.setMessagingService(messaging);
+            if (dataDir != null) {
+                node.enablePersistence(Path.of(dataDir, node.getName()));
+            }
+            node.start();
+        }
+    }
+
+    // Publishes the next epoch with partitions spread over every group; nodes migrate in the background
+    public PartitionConfig rebalance() {
+        PartitionConfig next = partitionConfig.rebalanced();
+        ConfigServer.publishTopology(messaging, next, true);
+        partitionConfig = next;
+        return next;
+    }
+
+    public void stop() {
+        messaging.close();
+    }
+
+    public List<String> getNodeNames() {
+        List<String> names = new ArrayList<>();
+        for (DSMNode node : nodes) names.add(node.getName());
+        return names;
+    }
+
+    public List<DSMNode> getNodes() { return nodes; }
+    public PartitionConfig getPartitionConfig() { return partitionConfig; }
+    public InMemoryMessagingService getMessagingService() { return messaging; }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java LocalCluster <request_file> [--encode]");
+            System.exit(1);
+        }
+        List<String> lines = Files.readAllLines(Paths.get(args[0]));
+        boolean encode = args.length > 1 && args[1].equals("--encode");
+
+        InMemoryMessagingService messaging = encode
+                ? new InMemoryMessagingService(MessageCodec.fromSystemProperties(),
+                        Integer.getInteger("dsm.inmemory.mailboxCapacity", 65536))
+                : new InMemoryMessagingService();
+        LocalCluster cluster = new LocalCluster(ConfigServer.createPartitionConfig(), messaging);
+        cluster.start();
+
+        long start = System.nanoTime();
+        try (DSMClient client = new DSMClient(messaging, cluster.getPartitionConfig())) {
+            Client.runRequests(lines, client);
+        }
+        long elapsedMicros = (System.nanoTime() - start) / 1000;
+        System.out.println("Local cluster processed " + lines.size() + " requests in " + elapsedMicros + " us");
+
+        cluster.stop();
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A {@link BoundedMailboxQueue} drained by its own thread. The drain thread parks when
+ * the queue is empty and producers only unpark it when it is actually waiting.
+ */
+public class Mailbox<T> {
+    private static final long FULL_PARK_NANOS = 50_000;
+
+    private final String name;
+    private final BoundedMailboxQueue<T> queue;
+    private volatile Thread drainer;
+    private volatile boolean waiting;
+    private volatile boolean running;
+
+    public Mailbox(String name, int capacity) {
+        this.name = name;
+        this.queue = new BoundedMailboxQueue<>(capacity);
+    }
+
+    // Waits for space for as long as it takes, so a slow consumer slows its producers down instead
+    // of losing their messages. Fails only once the mailbox has been stopped.
+    public void put(T item) throws IOException {
+        if (!queue.offer(item)) {
+            int spins = 0;
+            while (!queue.offer(item)) {
+                if (drainer != null && !running) {
+                    throw new IOException("Mailbox " + name + " is stopped");
+                }
+                if (++spins < 100) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(this, FULL_PARK_NANOS);
+                }
+            }
+        }
+        wakeDrainer();
+    }
+
+    // Adds item only if there is space right now
+    public boolean offer(T item) {
+        if (!queue.offer(item)) return false;
+        wakeDrainer();
+        return true;
+    }
+
+    private void wakeDrainer() {
+        if (waiting) {
+            waiting = false;
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    public synchronized void start(Consumer<T> handler) {
+        if (drainer != null) {
+            throw new IllegalStateException("Mailbox " + name + " already has a consumer");
+        }
+        running = true;
+        Thread thread = new Thread(() -> drain(handler), "mailbox-" + name);
+        thread.setDaemon(true);
+        drainer = thread;
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        Thread thread = drainer;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    private void drain(Consumer<T> handler) {
+        while (running) {
+            T item = queue.poll();
+            if (item != null) {
+                try {
+                    handler.accept(item);
+                } catch (RuntimeException e) {
+                    System.err.println("Error in consumer for " + name + ": " + e.getMessage());
+                }
+                continue;
+            }
+            waiting = true;
+            if (queue.isEmpty()) {
+                LockSupport.park(this);
+            }
+            waiting = false;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntPredicate;
+import java.util.function.LongSupplier;
+
+/**
+ * Hash tree over a node's storage for anti-entropy. Each leaf is one virtual partition and
+ * each inner node hashes {@link #FANOUT} children, so two nodes find the partitions they
+ * disagree on by comparing a few hashes per level instead of the data itself.
+ *
+ * <p>Writes go through {@link #tracking()}, which only flags the partition dirty; hashes are
+ * recomputed lazily for dirty partitions and their ancestors the next time the tree is read.
+ * Every write also stamps its partition with the current sequence number, so a primary can
+ * tell which of its partitions changed after the point a replica's hashes describe.
+ *
+ * <p>Partitions the node does not own (per {@code owned}) hash to 0, so data left behind by
+ * a rebalance never shows up as a difference; call {@link #invalidate(int)} for each partition
+ * that is gained or lost when ownership changes.
+ */
+public class MerkleTree {
+    public static final int FANOUT = 16;
+
+    private final StorageEngine storage;
+    private final int totalAddresses;
+    private final int partitionShift;
+    private final LongSupplier currentSequence;
+    private final IntPredicate owned;
+
+    private final AtomicIntegerArray dirty; // per partition, 1 if its hash is out of date
+    private final AtomicLongArray lastModified; // per partition, sequence number of its latest write
+    private final long[][] levels; // levels[0] are the partitions, the last level is the root; guarded by this
+
+    public MerkleTree(StorageEngine storage, PartitionConfig config, LongSupplier currentSequence, IntPredicate owned) {
+        this.storage = storage;
+        this.totalAddresses = config.getTotalAddresses();
+        this.partitionShift = Integer.numberOfTrailingZeros(config.getPartitionSize());
+        this.currentSequence = currentSequence;
+        this.owned = owned;
+
+        int leaves = config.getVirtualPartitionCount();
+        this.dirty = new AtomicIntegerArray(leaves);
+        this.lastModified = new AtomicLongArray(leaves);
+        int height = 1;
+        for (int width = leaves; width > 1; width = (width + FANOUT - 1) / FANOUT) height++;
+        this.levels = new long[height][];
+        for (int level = 0, width = leaves; level < height; level++, width = (width + FANOUT - 1) / FANOUT) {
+            levels[level] = new long[width];
+        }
+        for (int partition = 0; partition < leaves; partition++) dirty.set(partition, 1); // nothing hashed yet
+    }
+
+    // Storage view that keeps this tree up to date; all writes after construction must go through it
+    public StorageEngine tracking() {
+        return new StorageEngine() {
+            @Override
+            public int read(int address) {
+                return storage.read(address);
+            }
+
+            @Override
+            public void write(int address, int value) {
+                storage.write(address, value);
+                touch(address >>> partitionShift);
+            }
+
+            @Override
+            public long allocatedWords() {
+                return storage.allocatedWords();
+            }
+
+            @Override
+            public int pageSize() {
+                return storage.pageSize();
+            }
+
+            @Override
+            public int pageCount() {
+                return storage.pageCount();
+            }
+
+            @Override
+            public int firstAddress() {
+                return storage.firstAddress();
+            }
+
+            @Override
+            public boolean copyPage(int pageIndex, int[] dest) {
+                return storage.copyPage(pageIndex, dest);
+            }
+
+            @Override
+            public void writePage(int pageIndex, int[] src) {
+                storage.writePage(pageIndex, src);
+                long first = storage.firstAddress() + (long) pageIndex * storage.pageSize();
+                long last = Math.min(totalAddresses - 1L, first + storage.pageSize() - 1);
+                for (long partition = first >>> partitionShift; partition <= last >>> partitionShift; partition++) {
+                    touch((int) partition);
+                }
+            }
+        };
+    }
+
+    private void touch(int partition) {
+        // Stamp before flagging: a hash computed after the flag is cleared sees the new stamp
+        lastModified.set(partition, currentSequence.getAsLong());
+        dirty.set(partition, 1);
+    }
+
+    // Marks partition dirty without a write, e.g. because the node gained or lost it
+    public void invalidate(int partition) {
+        dirty.set(partition, 1);
+    }
+
+    // True if the partition was written after sequenceNumber
+    public boolean modifiedAfter(int partition, long sequenceNumber) {
+        return lastModified.get(partition) > sequenceNumber;
+    }
+
+    // Number of levels; level height() - 1 holds only the root
+    public int height() {
+        return levels.length;
+    }
+
+    // Current hashes of the given nodes of a level
+    public synchronized long[] hashes(int level, int[] nodes) {
+        refresh();
+        long[] result = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) result[i] = levels[level][nodes[i]];
+        return result;
+    }
+
+    // The children, one level down, of the given nodes
+    public int[] children(int level, int[] nodes) {
+        int below = levels[level - 1].length;
+        int count = 0;
+        for (int node : nodes) count += Math.min(below, (node + 1) * FANOUT) - node * FANOUT;
+        int[] result = new int[count];
+        int i = 0;
+        for (int node : nodes) {
+            for (int child = node * FANOUT; child < Math.min(below, (node + 1) * FANOUT); child++) result[i++] = child;
+        }
+        return result;
+    }
+
+    // Rehashes dirty partitions, then every inner node above one that changed. Caller holds this.
+    private void refresh() {
+        boolean[] changed = null;
+        long[] leaves = levels[0];
+        for (int partition = 0; partition < leaves.length; partition++) {
+            if (dirty.get(partition) == 0 || dirty.getAndSet(partition, 0) == 0) continue;
+            leaves[partition] = hashPartition(partition);
+            if (changed == null) changed = new boolean[leaves.length];
+            changed[partition] = true;
+        }
+        for (int level = 1; changed != null && level < levels.length; level++) {
+            long[] below = levels[level - 1];
+            long[] nodes = levels[level];
+            boolean[] changedHere = new boolean[nodes.length];
+            for (int child = 0; child < below.length; child++) {
+                if (changed[child]) changedHere[child / FANOUT] = true;
+            }
+            for (int node = 0; node < nodes.length; node++) {
+                if (!changedHere[node]) continue;
+                long h = 0;
+                for (int child = node * FANOUT; child < Math.min(below.length, (node + 1) * FANOUT); child++) {
+                    h = h * 0x9E3779B97F4A7C15L + below[child];
+                }
+                nodes[node] = mix(h);
+            }
+            changed = changedHere;
+        }
+    }
+
+    // Order-independent sum over the non-zero words, keyed by address so moved values still differ
+    private long hashPartition(int partition) {
+        if (!owned.test(partition)) return 0;
+        long start = (long) partition << partitionShift;
+        long end = Math.min(totalAddresses, start + (1L << partitionShift));
+        long h = 0;
+        for (long address = start; address < end; address++) {
+            int value = storage.read((int) address);
+            if (value != 0) h += mix((address << 32) | (value & 0xFFFFFFFFL));
+        }
+        return h;
+    }
+
+    // Stafford variant 13 of the SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,36 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format for {@link DSMMessage}s, used by the {@link MessagingService} implementations.
+ * Every encoding starts with a marker byte so codecs can recognise each other's frames,
+ * which keeps mixed clusters working during a rolling upgrade.
+ */
+public interface MessageCodec {
+    void encode(DSMMessage msg, ByteBuffer out);
+
+    DSMMessage decode(ByteBuffer in);
+
+    // Number of bytes encode() will write for this message
+    int encodedSize(DSMMessage msg);
+
+    // Convenience for transports that need an exact-size array (e.g. RabbitMQ basicPublish)
+    default byte[] encode(DSMMessage msg) {
+        byte[] bytes = new byte[encodedSize(msg)];
+        encode(msg, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    default DSMMessage decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    // Picks the codec named by the "dsm.codec" system property: "binary" (default) or "json".
+    static MessageCodec fromSystemProperties() {
+        String name = System.getProperty("dsm.codec", "binary");
+        return switch (name.toLowerCase()) {
+            case "binary" -> new BinaryMessageCodec();
+            case "json" -> new JsonMessageCodec();
+            default -> throw new IllegalArgumentException("Unknown codec: " + name);
+        };
+    }
+}
@@ -1,9 +1,27 @@
 import java.io.IOException;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
-public interface MessagingService {
+public interface MessagingService extends AutoCloseable {
     void send(String queue, DSMMessage msg) throws IOException;
-    void sendReply(String replyQueue, String value) throws IOException;
+    void sendReply(String replyQueue, DSMMessage reply) throws IOException;
     void startMessageListener(String queueName, Consumer<DSMMessage> handler) throws IOException;
+    void startReplyListener(String replyQueue, Consumer<DSMMessage> handler) throws IOException;
+
+    // Narrower than AutoCloseable's, so try-with-resources does not have to expect InterruptedException
+    @Override
+    void close() throws IOException, TimeoutException;
+
+    // Picks the transport named by the "dsm.transport" system property: "rabbitmq" (default) or "nio".
+    // localName is the node this process runs, or null for a client.
+    static MessagingService fromSystemProperties(String localName, Topology topology)
+            throws IOException, TimeoutException {
+        String transport = System.getProperty("dsm.transport", "rabbitmq");
+        return switch (transport.toLowerCase()) {
+            case "rabbitmq" -> new RabbitMQMessagingService();
+            case "nio" -> NioMessagingService.forCluster(localName, topology);
+            default -> throw new IllegalArgumentException("Unknown transport: " + transport);
+        };
+    }
 }
 
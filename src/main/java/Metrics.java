@@ -0,0 +1,207 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A node's metrics: counters, gauges and {@link LatencyHistogram}s, each a series of a named
+ * family with optional labels. Everything is registered up front, so the hot path only
+ * touches a LongAdder or a histogram and never allocates; gauges are evaluated when scraped.
+ *
+ * <p>Every registry in the JVM is exposed through JMX as {@code dsm:type=Node,name=<node>},
+ * and all of them together in Prometheus text format by {@link MetricsServer}.
+ */
+public class Metrics {
+    private enum Kind { COUNTER, GAUGE, HISTOGRAM }
+
+    // One time series; labels are already rendered as node="...",k="v",...; source is a
+    // LongSupplier for counters and gauges and a LatencyHistogram for histograms
+    private record Series(String family, String help, Kind kind, String labels, Object source) {}
+
+    private static final List<Metrics> ALL = new CopyOnWriteArrayList<>();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final String node;
+    private final List<Series> series = new CopyOnWriteArrayList<>();
+    private ObjectName objectName; // set once registered with JMX
+
+    public Metrics(String node) {
+        this.node = node;
+    }
+
+    // labels are key, value pairs
+    public LongAdder counter(String family, String help, String... labels) {
+        LongAdder counter = new LongAdder();
+        counter(family, help, counter::sum, labels);
+        return counter;
+    }
+
+    // A counter kept by someone else, read when scraped
+    public void counter(String family, String help, LongSupplier value, String... labels) {
+        series.add(new Series(family, help, Kind.COUNTER, render(labels), value));
+    }
+
+    public void gauge(String family, String help, LongSupplier value, String... labels) {
+        series.add(new Series(family, help, Kind.GAUGE, render(labels), value));
+    }
+
+    public LatencyHistogram histogram(String family, String help, String... labels) {
+        return histogram(family, help, new LatencyHistogram(), labels);
+    }
+
+    // Exposes a histogram owned by someone else
+    public LatencyHistogram histogram(String family, String help, LatencyHistogram histogram, String... labels) {
+        series.add(new Series(family, help, Kind.HISTOGRAM, render(labels), histogram));
+        return histogram;
+    }
+
+    private String render(String[] labels) {
+        StringBuilder out = new StringBuilder("node=\"").append(node).append('"');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            out.append(',').append(labels[i]).append("=\"").append(labels[i + 1]).append('"');
+        }
+        return out.toString();
+    }
+
+    // Makes this registry visible to JMX and the Prometheus endpoint
+    public void register() {
+        if (!ALL.contains(this)) ALL.add(this);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("dsm:type=Node,name=" + ObjectName.quote(node));
+            if (server.isRegistered(name)) server.unregisterMBean(name); // a restarted node in the same JVM
+            server.registerMBean(new MBean(), name);
+            objectName = name;
+        } catch (JMException e) {
+            System.err.println("[" + node + "] Failed to register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        ALL.remove(this);
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // already gone
+        }
+        objectName = null;
+    }
+
+    public static List<Metrics> all() {
+        return ALL;
+    }
+
+    // Current value of every series, flattened: histograms become _count, _sum and one entry per quantile
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Series s : series) {
+            String labels = s.labels().replace("\"", "");
+            switch (s.kind()) {
+                case COUNTER, GAUGE -> values.put(s.family() + "{" + labels + "}", ((LongSupplier) s.source()).getAsLong());
+                case HISTOGRAM -> {
+                    LatencyHistogram h = (LatencyHistogram) s.source();
+                    values.put(s.family() + "_count{" + labels + "}", h.count());
+                    values.put(s.family() + "_sum{" + labels + "}", h.sumNanos() / 1e9);
+                    for (double q : QUANTILES) {
+                        values.put(s.family() + "{" + labels + ",quantile=" + q + "}", h.valueAtQuantile(q) / 1e9);
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    // Prometheus text exposition of several registries; each family's HELP and TYPE appear once
+    public static void writePrometheus(Collection<Metrics> registries, StringBuilder out) {
+        Map<String, List<Series>> families = new LinkedHashMap<>();
+        for (Metrics metrics : registries) {
+            for (Series s : metrics.series) {
+                families.computeIfAbsent(s.family(), f -> new ArrayList<>()).add(s);
+            }
+        }
+        for (List<Series> family : families.values()) {
+            Series first = family.get(0);
+            out.append("# HELP ").append(first.family()).append(' ').append(first.help()).append('\n');
+            out.append("# TYPE ").append(first.family()).append(' ')
+                    .append(first.kind() == Kind.HISTOGRAM ? "summary" : first.kind().name().toLowerCase()).append('\n');
+            for (Series s : family) {
+                switch (s.kind()) {
+                    case COUNTER, GAUGE -> sample(out, s.family(), s.labels(), ((LongSupplier) s.source()).getAsLong());
+                    case HISTOGRAM -> {
+                        LatencyHistogram h = (LatencyHistogram) s.source();
+                        for (double q : QUANTILES) {
+                            sample(out, s.family(), s.labels() + ",quantile=\"" + q + "\"", h.valueAtQuantile(q) / 1e9);
+                        }
+                        sample(out, s.family() + "_sum", s.labels(), h.sumNanos() / 1e9);
+                        sample(out, s.family() + "_count", s.labels(), h.count());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Number value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    // Read-only view of snapshot() for JMX; one attribute per flattened series
+    private class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value.doubleValue();
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (value != null) list.add(new Attribute(attribute, value.doubleValue()));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("No operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "double", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "DSM node " + node,
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
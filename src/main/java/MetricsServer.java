@@ -0,0 +1,44 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves every {@link Metrics} registry in the JVM at {@code /metrics} in Prometheus text
+ * format. One server per process, on {@code dsm.metrics.port}; off when the port is 0.
+ */
+public class MetricsServer {
+    public static final int DEFAULT_PORT = Integer.getInteger("dsm.metrics.port", 0);
+
+    private static HttpServer server; // guarded by MetricsServer.class
+
+    // Starts the endpoint on DEFAULT_PORT unless it is already running or disabled
+    public static synchronized void ensureStarted() {
+        if (server != null || DEFAULT_PORT <= 0) return;
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(DEFAULT_PORT), 0);
+            http.createContext("/metrics", exchange -> {
+                StringBuilder text = new StringBuilder();
+                Metrics.writePrometheus(Metrics.all(), text);
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            http.start();
+            server = http;
+            System.out.println("Serving metrics on http://localhost:" + DEFAULT_PORT + "/metrics");
+        } catch (IOException e) {
+            System.err.println("Failed to start metrics endpoint on port " + DEFAULT_PORT + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent versions of recently written words, so a node can answer a read "as of sequence
+ * number S" for many addresses at once without stopping writers. The current value of every
+ * word stays in the {@link StorageEngine}; next to it, each address written since the last
+ * collection keeps a short chain of (sequence number, value) pairs.
+ *
+ * <p>Chains are immutable and swapped in whole, and a writer installs the new chain before it
+ * updates the storage, so readers never lock: a reader that finds no chain knows the stored word
+ * is at or below the low watermark. {@link #collect} drops versions no snapshot at or above the
+ * new low watermark can see, and whole chains once only their latest version is left. A chain
+ * never holds more than {@code maxVersions} versions; snapshots older than its oldest one (or
+ * below the low watermark) cannot be served.
+ *
+ * <p>Writes to one address must come from one thread at a time, in sequence order, as the
+ * sequencer on a primary and the replication worker on a replica ensure.
+ */
+public class MultiVersionStore {
+    // Versions per address; 0 turns MVCC (and with it snapshot reads) off
+    public static final int DEFAULT_MAX_VERSIONS = Integer.getInteger("dsm.mvcc.maxVersions", 0);
+    // How far behind the latest sequence number snapshots stay readable
+    public static final long DEFAULT_RETAIN_SEQUENCES = Math.max(1, Long.getLong("dsm.mvcc.retainSequences", 65536));
+
+    // Oldest first. The first version of a new chain is the word it replaced, valid since before
+    // the low watermark, hence sequence number -1.
+    private record Chain(long[] sequenceNumbers, int[] values) {
+        // Index of the version visible at sequenceNumber, or -1 if it is older than the chain
+        int indexAt(long sequenceNumber) {
+            for (int i = sequenceNumbers.length - 1; i >= 0; i--) {
+                if (sequenceNumbers[i] <= sequenceNumber) return i;
+            }
+            return -1;
+        }
+
+        Chain append(long sequenceNumber, int value, int maxVersions) {
+            int last = sequenceNumbers.length - 1;
+            if (sequenceNumbers[last] == sequenceNumber) {
+                // Same unit writing the word twice (an MSET listing it again, a repeated repair)
+                int[] newValues = values.clone();
+                newValues[last] = value;
+                return new Chain(sequenceNumbers, newValues);
+            }
+            int keep = Math.min(sequenceNumbers.length, maxVersions - 1);
+            int from = sequenceNumbers.length - keep;
+            long[] newSequences = Arrays.copyOfRange(sequenceNumbers, from, from + keep + 1);
+            int[] newValues = Arrays.copyOfRange(values, from, from + keep + 1);
+            newSequences[keep] = sequenceNumber;
+            newValues[keep] = value;
+            return new Chain(newSequences, newValues);
+        }
+
+        // Drops versions hidden by a newer one at or below watermark; null if only the latest is left
+        Chain trim(long watermark) {
+            int visible = indexAt(watermark);
+            if (visible == sequenceNumbers.length - 1) return null;
+            if (visible <= 0) return this;
+            return new Chain(Arrays.copyOfRange(sequenceNumbers, visible, sequenceNumbers.length),
+                    Arrays.copyOfRange(values, visible, values.length));
+        }
+    }
+
+    private final StorageEngine storage;
+    private final int maxVersions;
+    private final ConcurrentHashMap<Integer, Chain> chains = new ConcurrentHashMap<>();
+    private volatile long lowWatermark;
+
+    public MultiVersionStore(StorageEngine storage, int maxVersions) {
+        if (maxVersions < 2) {
+            throw new IllegalArgumentException("Need at least 2 versions per address, got " + maxVersions);
+        }
+        this.storage = storage;
+        this.maxVersions = maxVersions;
+    }
+
+    public void write(int address, int value, long sequenceNumber) {
+        chains.compute(address, (a, chain) -> chain == null
+                ? new Chain(new long[] {-1, sequenceNumber}, new int[] {storage.read(a), value})
+                : chain.append(sequenceNumber, value, maxVersions));
+        VarHandle.storeStoreFence(); // whoever sees the new word also sees its chain
+        storage.write(address, value);
+    }
+
+    // Fills values with the words at addresses as of sequenceNumber; false if that snapshot is gone
+    public boolean readAt(int[] addresses, long sequenceNumber, int[] values) {
+        if (sequenceNumber < lowWatermark) return false;
+        for (int i = 0; i < addresses.length; i++) {
+            long value = readAt(addresses[i], sequenceNumber);
+            if (value == Long.MIN_VALUE) return false;
+            values[i] = (int) value;
+        }
+        return sequenceNumber >= lowWatermark; // a collection may have raced with the reads
+    }
+
+    // Same for the values.length words starting at start
+    public boolean readRangeAt(int start, long sequenceNumber, int[] values) {
+        if (sequenceNumber < lowWatermark) return false;
+        for (int i = 0; i < values.length; i++) {
+            long value = readAt(start + i, sequenceNumber);
+            if (value == Long.MIN_VALUE) return false;
+            values[i] = (int) value;
+        }
+        return sequenceNumber >= lowWatermark;
+    }
+
+    // The word, or Long.MIN_VALUE if its versions at sequenceNumber were dropped
+    private long readAt(int address, long sequenceNumber) {
+        int current = storage.read(address);
+        VarHandle.loadLoadFence(); // pairs with the fence in write()
+        Chain chain = chains.get(address);
+        if (chain == null) return current;
+        int index = chain.indexAt(sequenceNumber);
+        return index < 0 ? Long.MIN_VALUE : chain.values()[index];
+    }
+
+    // Raises the low watermark and drops what snapshots at or above it cannot see. The watermark
+    // must stay below the sequence number of any write still in progress.
+    public void collect(long watermark) {
+        if (watermark <= lowWatermark) return;
+        lowWatermark = watermark; // before trimming, so readers racing with it notice
+        for (Integer address : chains.keySet()) {
+            chains.computeIfPresent(address, (a, chain) -> chain.trim(watermark));
+        }
+    }
+
+    public long lowWatermark() {
+        return lowWatermark;
+    }
+
+    // Addresses currently holding more than their latest version
+    public int chainCount() {
+        return chains.size();
+    }
+}
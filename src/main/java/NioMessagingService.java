@@ -0,0 +1,588 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * {@link MessagingService} over direct, non-blocking TCP connections between peers,
+ * taking the broker out of the request and replication paths.
+ *
+ * Every process runs one selector thread. Queue names are routed to connections:
+ * node names resolve to the endpoints from the config and are dialled lazily, while
+ * listeners announce their queue names with a HELLO frame on every connection so
+ * peers (e.g. nodes replying to a client) can send back over the same socket.
+ * A node that receives a reply for a queue it does not own relays it along the
+ * connection that queue was learned on, which covers forwarded requests.
+ *
+ * Frames are length-prefixed: {@code int length, byte kind, payload}; reply frames
+ * carry the reply queue name ahead of the encoded message. Senders encode
+ * straight into the connection's direct output buffer, and everything queued between
+ * two selector passes goes out in a single write.
+ *
+ * Received messages are decoded on the selector thread but handed to the listeners on a
+ * separate delivery thread, so a slow handler never stalls the sockets. When more than
+ * {@code dsm.nio.maxPendingDeliveries} messages wait for it, the selector stops reading until
+ * half of them are handled, which pushes back on the senders through TCP. If a connection
+ * to a node breaks, the whole frames still waiting in its buffer go out again on a new one.
+ */
+public class NioMessagingService implements MessagingService {
+    private static final byte HELLO = 0;
+    private static final byte MESSAGE = 1;
+    private static final byte REPLY = 2;
+    private static final int HEADER_SIZE = 5;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_BUFFER_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_PENDING_DELIVERIES = Integer.getInteger("dsm.nio.maxPendingDeliveries", 65536);
+    // Times frames are moved to a fresh connection to the same node before they are given up on
+    private static final int MAX_REDIALS = 3;
+
+    private final String localName;
+    private final Map<String, InetSocketAddress> peers;
+    private final MessageCodec codec;
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final Thread deliveryThread;
+    private final LinkedBlockingQueue<Runnable> deliveries = new LinkedBlockingQueue<>();
+    private final List<Connection> paused = new ArrayList<>(); // selector thread only
+    private volatile boolean readsPaused;
+    private volatile boolean resumeRequested;
+
+    private final Map<String, Connection> routes = new ConcurrentHashMap<>();
+    private final Map<String, Consumer<DSMMessage>> messageHandlers = new ConcurrentHashMap<>();
+    private final Map<String, Consumer<DSMMessage>> replyHandlers = new ConcurrentHashMap<>();
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Connection> pendingConnects = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Connection> dirty = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param localName     name of this process, or null for a client that only listens on reply queues
+     * @param listenAddress address to accept peer connections on, or null to not accept any
+     * @param peers         node name -> endpoint for every node that may be sent to
+     */
+    public NioMessagingService(String localName, InetSocketAddress listenAddress,
+                               Map<String, InetSocketAddress> peers, MessageCodec codec) throws IOException {
+        this.localName = localName;
+        this.peers = peers;
+        this.codec = codec;
+        this.selector = Selector.open();
+        if (listenAddress != null) {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(listenAddress);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        String threadName = localName != null ? localName : "client";
+        this.selectorThread = new Thread(this::runSelector, "nio-" + threadName);
+        selectorThread.setDaemon(true);
+        this.deliveryThread = new Thread(this::runDeliveries, "nio-deliver-" + threadName);
+        deliveryThread.setDaemon(true);
+        selectorThread.start();
+        deliveryThread.start();
+    }
+
+    // Builds a transport for one member of the cluster described by the topology.
+    public static NioMessagingService forCluster(String localName, Topology topology) throws IOException {
+        Map<String, InetSocketAddress> peers = new ConcurrentHashMap<>();
+        InetSocketAddress listenAddress = null;
+        for (String node : topology.getNodeNames()) {
+            String address = topology.getEndpoint(node);
+            if (address == null) {
+                throw new IllegalArgumentException("Node " + node + " has no endpoint in the topology");
+            }
+            InetSocketAddress endpoint = parseEndpoint(address);
+            peers.put(node, endpoint);
+            if (node.equals(localName)) {
+                listenAddress = new InetSocketAddress(endpoint.getPort());
+            }
+        }
+        return new NioMessagingService(localName, listenAddress, peers, MessageCodec.fromSystemProperties());
+    }
+
+    static InetSocketAddress parseEndpoint(String endpoint) {
+        int colon = endpoint.lastIndexOf(':');
+        return new InetSocketAddress(endpoint.substring(0, colon), Integer.parseInt(endpoint.substring(colon + 1)));
+    }
+
+    @Override
+    public void send(String queue, DSMMessage msg) throws IOException {
+        Consumer<DSMMessage> local = messageHandlers.get(queue);
+        if (local != null) {
+            // Loopback, e.g. a node forwarding to itself: through the delivery thread like any other
+            // message, so a worker never waits on its own full queue
+            deliver(() -> local.accept(msg));
+            return;
+        }
+        while (true) {
+            Connection connection = route(queue);
+            synchronized (connection) {
+                if (connection.closed) continue; // dropped since we looked it up
+                ByteBuffer out = connection.reserve(HEADER_SIZE + codec.encodedSize(msg));
+                int start = out.position();
+                out.position(start + HEADER_SIZE);
+                codec.encode(msg, out);
+                out.putInt(start, out.position() - start - 4);
+                out.put(start + 4, MESSAGE);
+            }
+            markDirty(connection);
+            return;
+        }
+    }
+
+    @Override
+    public void sendReply(String replyQueue, DSMMessage reply) throws IOException {
+        Consumer<DSMMessage> local = replyHandlers.get(replyQueue);
+        if (local != null) {
+            deliver(() -> local.accept(reply));
+            return;
+        }
+        byte[] name = replyQueue.getBytes(StandardCharsets.UTF_8);
+        while (true) {
+            Connection connection = route(replyQueue);
+            synchronized (connection) {
+                if (connection.closed) continue;
+                ByteBuffer out = connection.reserve(HEADER_SIZE + 2 + name.length + codec.encodedSize(reply));
+                int start = out.position();
+                out.position(start + HEADER_SIZE);
+                out.putShort((short) name.length).put(name);
+                codec.encode(reply, out);
+                out.putInt(start, out.position() - start - 4);
+                out.put(start + 4, REPLY);
+            }
+            markDirty(connection);
+            return;
+        }
+    }
+
+    @Override
+    public void startMessageListener(String queueName, Consumer<DSMMessage> handler) {
+        messageHandlers.put(queueName, handler);
+        announce(queueName);
+    }
+
+    @Override
+    public void startReplyListener(String replyQueue, Consumer<DSMMessage> handler) {
+        replyHandlers.put(replyQueue, handler);
+        announce(replyQueue);
+    }
+
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        deliveryThread.interrupt();
+        for (Connection connection : connections) {
+            connection.channel.close();
+        }
+        selector.close();
+    }
+
+    private Connection route(String queue) throws IOException {
+        Connection connection = routes.get(queue);
+        if (connection != null) return connection;
+        InetSocketAddress endpoint = peers.get(queue);
+        if (endpoint == null) {
+            throw new IOException("No route to queue " + queue);
+        }
+        synchronized (routes) {
+            connection = routes.get(queue);
+            if (connection == null) {
+                connection = dial(queue, endpoint);
+                routes.put(queue, connection);
+            }
+        }
+        return connection;
+    }
+
+    private Connection dial(String peer, InetSocketAddress endpoint) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.connect(endpoint);
+        Connection connection = new Connection(channel, peer);
+        greet(connection);
+        connections.add(connection);
+        pendingConnects.add(connection);
+        selector.wakeup();
+        return connection;
+    }
+
+    // Tells a new peer which queues live in this process.
+    private void greet(Connection connection) throws IOException {
+        if (localName != null) sendHello(connection, localName);
+        for (String queue : messageHandlers.keySet()) {
+            if (!queue.equals(localName)) sendHello(connection, queue);
+        }
+        for (String queue : replyHandlers.keySet()) sendHello(connection, queue);
+    }
+
+    private void announce(String queue) {
+        for (Connection connection : connections) {
+            try {
+                sendHello(connection, queue);
+            } catch (IOException e) {
+                System.err.println("Failed to announce " + queue + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void sendHello(Connection connection, String queue) throws IOException {
+        byte[] name = queue.getBytes(StandardCharsets.UTF_8);
+        synchronized (connection) {
+            if (connection.closed) return; // its replacement greets the peer itself
+            ByteBuffer out = connection.reserve(HEADER_SIZE + name.length);
+            out.putInt(1 + name.length).put(HELLO).put(name);
+        }
+        markDirty(connection);
+    }
+
+    // Passes a reply frame on unchanged, for replies to queues owned by another process.
+    private void relay(Connection connection, ByteBuffer frame) throws IOException {
+        synchronized (connection) {
+            if (connection.closed) throw new IOException("Connection " + connection.describe() + " is closed");
+            ByteBuffer out = connection.reserve(4 + frame.remaining());
+            out.putInt(frame.remaining()).put(frame);
+        }
+        markDirty(connection);
+    }
+
+    private void markDirty(Connection connection) {
+        if (connection.flushRequested) return;
+        connection.flushRequested = true;
+        dirty.add(connection);
+        if (Thread.currentThread() != selectorThread) {
+            selector.wakeup();
+        }
+    }
+
+    private void runSelector() {
+        try {
+            while (running) {
+                registerPendingConnects();
+                if (resumeRequested) resumeReads();
+                flushDirty();
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isAcceptable()) accept((ServerSocketChannel) key.channel());
+                        else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isConnectable()) finishConnect(connection);
+                            if (key.isValid() && key.isReadable()) read(connection);
+                            if (key.isValid() && key.isWritable()) write(connection);
+                        }
+                    } catch (IOException e) {
+                        Object attachment = key.attachment();
+                        if (attachment instanceof Connection connection) drop(connection, e);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) System.err.println("NIO selector stopped: " + e.getMessage());
+        }
+    }
+
+    private void registerPendingConnects() {
+        Connection connection;
+        while ((connection = pendingConnects.poll()) != null) {
+            try {
+                connection.key = connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+            } catch (IOException e) {
+                drop(connection, e);
+            }
+        }
+    }
+
+    private void flushDirty() {
+        Connection connection;
+        while ((connection = dirty.poll()) != null) {
+            connection.flushRequested = false;
+            if (connection.key == null || !connection.channel.isConnected()) continue; // flushed once connected
+            try {
+                write(connection);
+            } catch (IOException e) {
+                drop(connection, e);
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel, null);
+        connections.add(connection);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        greet(connection);
+    }
+
+    private void finishConnect(Connection connection) throws IOException {
+        connection.channel.finishConnect();
+        connection.redials = 0;
+        connection.key.interestOps(connection.paused ? 0 : SelectionKey.OP_READ);
+        write(connection);
+    }
+
+    private void write(Connection connection) throws IOException {
+        synchronized (connection) {
+            ByteBuffer out = connection.out;
+            if (out.position() == 0) return;
+            out.flip();
+            int written = connection.channel.write(out);
+            connection.headRemaining = unsentOfHeadFrame(out, connection.headRemaining, written);
+            out.compact();
+            int interest = (connection.paused ? 0 : SelectionKey.OP_READ)
+                    | (out.position() > 0 ? SelectionKey.OP_WRITE : 0);
+            connection.key.interestOps(interest);
+        }
+    }
+
+    // Frames in out (flipped, starting headRemaining bytes before the end of a frame) are written
+    // from the front; returns how much of the frame the unsent bytes now start in is still to go
+    private static int unsentOfHeadFrame(ByteBuffer out, int headRemaining, int written) {
+        int end = headRemaining;
+        while (end < written) end += 4 + out.getInt(end);
+        return end - written;
+    }
+
+    private void read(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        if (connection.channel.read(in) < 0) {
+            throw new IOException("Connection closed by peer");
+        }
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            // Every frame has at least its type byte; anything else means the stream is corrupt
+            if (length < 1 || length > MAX_BUFFER_SIZE) throw new IOException("Bad frame length: " + length);
+            if (in.remaining() < 4 + length) {
+                if (4 + length > in.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocateDirect(Integer.highestOneBit(4 + length) << 1);
+                    connection.in = bigger.put(in);
+                    return;
+                }
+                break;
+            }
+            int frameEnd = in.position() + 4 + length;
+            int limit = in.limit();
+            in.position(in.position() + 4);
+            in.limit(frameEnd);
+            try {
+                dispatch(connection, in);
+            } catch (RuntimeException e) {
+                System.err.println("Error handling frame: " + e.getMessage());
+            }
+            in.limit(limit);
+            in.position(frameEnd);
+        }
+        in.compact();
+        if (deliveries.size() >= MAX_PENDING_DELIVERIES && !connection.paused) {
+            // Handlers are behind: leave the rest in the socket until they catch up
+            connection.paused = true;
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+            paused.add(connection);
+            readsPaused = true;
+        }
+    }
+
+    private void resumeReads() {
+        resumeRequested = false;
+        readsPaused = false;
+        for (Connection connection : paused) {
+            connection.paused = false;
+            SelectionKey key = connection.key;
+            if (key != null && key.isValid() && connection.channel.isConnected()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+        paused.clear();
+    }
+
+    private void deliver(Runnable delivery) {
+        deliveries.add(delivery);
+    }
+
+    private void runDeliveries() {
+        while (running) {
+            Runnable delivery;
+            try {
+                delivery = deliveries.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                delivery.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error handling frame: " + e.getMessage());
+            }
+            if (readsPaused && !resumeRequested && deliveries.size() <= MAX_PENDING_DELIVERIES / 2) {
+                resumeRequested = true;
+                selector.wakeup();
+            }
+        }
+    }
+
+    private void dispatch(Connection connection, ByteBuffer frame) throws IOException {
+        byte kind = frame.get();
+        switch (kind) {
+            case HELLO -> {
+                String queue = StandardCharsets.UTF_8.decode(frame).toString();
+                routes.putIfAbsent(queue, connection);
+            }
+            case MESSAGE -> {
+                DSMMessage msg = codec.decode(frame);
+                // Messages are only ever addressed to node queues, i.e. to this process's node
+                Consumer<DSMMessage> handler = localName != null ? messageHandlers.get(localName) : null;
+                if (msg.getReplyToQueue() != null) {
+                    routes.putIfAbsent(msg.getReplyToQueue(), connection);
+                }
+                if (handler != null) {
+                    deliver(() -> handler.accept(msg));
+                } else {
+                    System.err.println("Dropping " + msg.getType() + " from " + connection.describe()
+                            + ": no node listens in this process");
+                }
+            }
+            case REPLY -> {
+                int frameStart = frame.position() - 1;
+                byte[] name = new byte[frame.getShort()];
+                frame.get(name);
+                String replyQueue = new String(name, StandardCharsets.UTF_8);
+                Consumer<DSMMessage> handler = replyHandlers.get(replyQueue);
+                if (handler != null) {
+                    DSMMessage reply = codec.decode(frame);
+                    deliver(() -> handler.accept(reply));
+                } else {
+                    Connection next = routes.get(replyQueue);
+                    if (next != null && next != connection) relay(next, frame.position(frameStart));
+                }
+            }
+            default -> throw new IOException("Unknown frame kind " + kind);
+        }
+    }
+
+    private void drop(Connection connection, IOException cause) {
+        System.err.println("Closing connection " + connection.describe() + ": " + cause.getMessage());
+        connections.remove(connection);
+        routes.values().removeIf(c -> c == connection);
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {
+        }
+        requeue(connection);
+    }
+
+    // Moves the whole frames a dropped connection had not sent yet to a new connection to the same
+    // node. A frame it had partly written is lost, and so is everything for a peer that dialled us
+    // (we cannot reach it) or that could not be reached MAX_REDIALS times in a row; both are reported.
+    private void requeue(Connection dropped) {
+        byte[] frames;
+        int partial;
+        synchronized (dropped) {
+            dropped.closed = true;
+            ByteBuffer out = dropped.out;
+            out.flip();
+            partial = Math.min(out.limit(), dropped.headRemaining);
+            out.position(partial);
+            frames = new byte[out.remaining()];
+            out.get(frames);
+            out.clear();
+        }
+        if (frames.length > 0 && dropped.peer != null && dropped.redials < MAX_REDIALS && running) {
+            try {
+                synchronized (routes) {
+                    Connection next = routes.get(dropped.peer);
+                    if (next == null) {
+                        next = dial(dropped.peer, peers.get(dropped.peer));
+                        next.redials = dropped.redials + 1;
+                        routes.put(dropped.peer, next);
+                    }
+                    synchronized (next) {
+                        next.reserve(frames.length).put(frames);
+                    }
+                    markDirty(next);
+                }
+                frames = new byte[0];
+            } catch (IOException e) {
+                System.err.println("Failed to reconnect to " + dropped.peer + ": " + e.getMessage());
+            }
+        }
+        if (frames.length > 0 || partial > 0) {
+            System.err.println("Lost " + countFrames(frames) + (partial > 0 ? " whole frames and one partly sent frame" : " frames")
+                    + " queued for " + (dropped.peer != null ? dropped.peer : dropped.describe()));
+        }
+    }
+
+    private static int countFrames(byte[] frames) {
+        ByteBuffer buffer = ByteBuffer.wrap(frames);
+        int count = 0;
+        for (int position = 0; position + 4 <= frames.length; position += 4 + buffer.getInt(position)) count++;
+        return count;
+    }
+
+    // Grows a buffer that is in write mode, keeping its contents.
+    private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) throws IOException {
+        int capacity = buffer.capacity();
+        while (capacity < minCapacity) capacity *= 2;
+        if (capacity > MAX_BUFFER_SIZE) throw new IOException("Buffer limit exceeded");
+        ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private static class Connection {
+        private final SocketChannel channel;
+        private final String peer; // node this connection was dialled to, null if the peer dialled us
+        private ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private volatile SelectionKey key;
+        private volatile boolean flushRequested;
+        private int headRemaining; // bytes of a partly written frame at the front of out, guarded by this
+        private boolean closed; // dropped; senders must route again, guarded by this
+        private boolean paused; // reads held back while handlers catch up, selector thread only
+        private volatile int redials; // consecutive reconnects that carried this connection's frames
+
+        Connection(SocketChannel channel, String peer) {
+            this.channel = channel;
+            this.peer = peer;
+        }
+
+        // Caller must hold the connection's lock.
+        ByteBuffer reserve(int bytes) throws IOException {
+            if (out.remaining() < bytes) {
+                out = grow(out, out.position() + bytes);
+            }
+            return out;
+        }
+
+        String describe() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "<closed>";
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Optional durability for a {@link DSMNode}: every applied write goes to a {@link WriteAheadLog},
+ * a background thread fsyncs the log every few hundred microseconds (group commit) and reports
+ * the durable sequence number, and another takes periodic {@link StorageSnapshots} after which
+ * the covered log segments are deleted. On restart the node loads the latest snapshot and
+ * replays only the log tail, so recovery time is bounded by snapshot size, not history length.
+ */
+public class NodePersistence implements AutoCloseable {
+    public static final long DEFAULT_SYNC_MICROS = Long.getLong("dsm.wal.syncMicros", 500);
+    public static final long DEFAULT_SNAPSHOT_SECONDS = Long.getLong("dsm.snapshot.intervalSeconds", 60);
+    public static final int DEFAULT_SEGMENT_BYTES = Integer.getInteger("dsm.wal.segmentBytes", 64 * 1024 * 1024);
+
+    private final String nodeName;
+    private final StorageEngine storage;
+    private final WriteAheadLog log;
+    private final StorageSnapshots snapshots;
+    private final ScheduledExecutorService syncThread;
+    private final ScheduledExecutorService snapshotThread;
+    private volatile long durableSequenceNumber;
+
+    public NodePersistence(String nodeName, Path directory, StorageEngine storage) throws IOException {
+        this.nodeName = nodeName;
+        this.storage = storage;
+        this.log = new WriteAheadLog(directory.resolve("wal"), DEFAULT_SEGMENT_BYTES);
+        this.snapshots = new StorageSnapshots(directory.resolve("snapshots"));
+        this.syncThread = Executors.newSingleThreadScheduledExecutor(daemon("wal-sync-" + nodeName));
+        this.snapshotThread = Executors.newSingleThreadScheduledExecutor(daemon("snapshot-" + nodeName));
+    }
+
+    /** Restores storage from disk and returns the last recovered sequence number. */
+    public long recover() throws IOException {
+        long start = System.nanoTime();
+        long snapshotSequence = snapshots.loadLatest(storage);
+        long[] replayed = new long[1];
+        long recovered = log.replay(snapshotSequence, (sequenceNumber, address, value) -> {
+            storage.write(address, value);
+            replayed[0]++;
+        });
+        durableSequenceNumber = recovered;
+        System.out.println("[" + nodeName + "] Recovered up to seq=" + recovered + " from snapshot seq="
+                + snapshotSequence + " and " + replayed[0] + " log records in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return recovered;
+    }
+
+    /** Starts group commit; onDurable receives the highest durable sequence number after each fsync. */
+    public void start(LongConsumer onDurable) {
+        syncThread.scheduleWithFixedDelay(() -> {
+            long durable = log.sync();
+            if (durable > durableSequenceNumber) {
+                durableSequenceNumber = durable;
+                onDurable.accept(durable);
+            }
+        }, DEFAULT_SYNC_MICROS, DEFAULT_SYNC_MICROS, TimeUnit.MICROSECONDS);
+        snapshotThread.scheduleWithFixedDelay(this::snapshot,
+                DEFAULT_SNAPSHOT_SECONDS, DEFAULT_SNAPSHOT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Callers apply a write to storage first and log it afterwards.
+    public void logWrite(long sequenceNumber, int address, int value) {
+        try {
+            log.append(sequenceNumber, address, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void logWrite(int[] addresses, int[] values, long sequenceNumber) {
+        try {
+            log.append(addresses, values, sequenceNumber);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void logWrites(int[] addresses, int[] values, long[] sequenceNumbers, int from, int to) {
+        try {
+            log.append(addresses, values, sequenceNumbers, from, to);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void snapshot() {
+        try {
+            long sequenceNumber = log.lastAppended(); // every write up to here is already in storage
+            snapshots.write(storage, sequenceNumber);
+            log.truncateUpTo(sequenceNumber);
+            System.out.println("[" + nodeName + "] Wrote snapshot at seq=" + sequenceNumber);
+        } catch (IOException e) {
+            System.err.println("[" + nodeName + "] Snapshot failed: " + e.getMessage());
+        }
+    }
+
+    public long getDurableSequenceNumber() {
+        return durableSequenceNumber;
+    }
+
+    // Sequence number of the last record logged, durable or not
+    public long getLoggedSequenceNumber() {
+        return log.lastAppended();
+    }
+
+    @Override
+    public void close() throws IOException {
+        syncThread.shutdownNow();
+        snapshotThread.shutdownNow();
+        log.close();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,110 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Default {@link StorageEngine}: the address range is split into fixed-size
+ * pages of primitive ints that are only allocated on first write. Reads from
+ * a page that was never written return 0 without allocating, so a node that
+ * owns a huge range starts instantly and only pays for the pages it touches.
+ *
+ * <p>Safe for concurrent use without locks: pages are installed with a CAS and
+ * words are written with release and read with acquire semantics, so a reader
+ * on another worker thread sees a write as soon as it has been made.
+ */
+public class PagedStorageEngine implements StorageEngine {
+    public static final int PAGE_SHIFT = 10;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT; // 1024 words = 4 KiB per page
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final int startAddress;
+    private final int endAddress;
+    private final AtomicReferenceArray<int[]> pages;
+
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    public PagedStorageEngine(int startAddress, int endAddress) {
+        if (endAddress < startAddress) {
+            throw new IllegalArgumentException("Empty address range " + startAddress + " .. " + endAddress);
+        }
+        this.startAddress = startAddress;
+        this.endAddress = endAddress;
+        long words = (long) endAddress - startAddress + 1;
+        this.pages = new AtomicReferenceArray<>((int) ((words + PAGE_SIZE - 1) >>> PAGE_SHIFT));
+    }
+
+    @Override
+    public int read(int address) {
+        int offset = offsetOf(address);
+        int[] page = pages.get(offset >>> PAGE_SHIFT);
+        return page == null ? 0 : (int) WORDS.getAcquire(page, offset & PAGE_MASK);
+    }
+
+    @Override
+    public void write(int address, int value) {
+        int offset = offsetOf(address);
+        int pageIndex = offset >>> PAGE_SHIFT;
+        int[] page = pages.get(pageIndex);
+        if (page == null) {
+            if (value == 0) return; // untouched pages already read as zero
+            page = allocatePage(pageIndex);
+        }
+        WORDS.setRelease(page, offset & PAGE_MASK, value);
+    }
+
+    @Override
+    public long allocatedWords() {
+        long words = 0;
+        for (int i = 0; i < pages.length(); i++) {
+            if (pages.get(i) != null) words += PAGE_SIZE;
+        }
+        return words;
+    }
+
+    @Override
+    public int pageSize() {
+        return PAGE_SIZE;
+    }
+
+    @Override
+    public int pageCount() {
+        return pages.length();
+    }
+
+    @Override
+    public int firstAddress() {
+        return startAddress;
+    }
+
+    @Override
+    public boolean copyPage(int pageIndex, int[] dest) {
+        int[] page = pages.get(pageIndex);
+        if (page == null) return false;
+        System.arraycopy(page, 0, dest, 0, PAGE_SIZE);
+        return true;
+    }
+
+    @Override
+    public void writePage(int pageIndex, int[] src) {
+        int[] page = pages.get(pageIndex);
+        if (page == null) {
+            page = allocatePage(pageIndex);
+        }
+        System.arraycopy(src, 0, page, 0, PAGE_SIZE);
+        VarHandle.releaseFence();
+    }
+
+    // Two writers racing on an empty page both end up using whichever page won the CAS
+    private int[] allocatePage(int pageIndex) {
+        int[] page = new int[PAGE_SIZE];
+        if (pages.compareAndSet(pageIndex, null, page)) return page;
+        return pages.get(pageIndex);
+    }
+
+    private int offsetOf(int address) {
+        if (address < startAddress || address > endAddress) {
+            throw new IllegalArgumentException("Address " + address + " is outside " + startAddress + " .. " + endAddress);
+        }
+        return address - startAddress;
+    }
+}
@@ -1,71 +1,324 @@
 import java.util.*;
 
+/**
+ * Maps addresses to replication groups. The address space is cut into many small virtual
+ * partitions of {@code partitionSize} addresses (a power of two), and a flat routing array
+ * assigns each virtual partition to one physical replication group, so a lookup is a shift
+ * and an array load.
+ *
+ * <p>How virtual partitions are spread over groups is set by the {@link Mapping}: RANGE keeps
+ * one contiguous block of addresses per group, INTERLEAVED deals partitions out round-robin
+ * and HASHED scatters them, so sequential or hot regions end up on several primaries.
+ * Every process in the cluster must build its config with the same settings.
+ *
+ * <p>A config is immutable and stamped with an epoch. Rebalancing produces a new config with
+ * the next epoch and a different routing table; see {@link #rebalanced()}. Groups beyond
+ * {@code activeGroups} start out owning nothing, as standby capacity to rebalance onto.
+ */
 public class PartitionConfig {
+    public enum Mapping { RANGE, INTERLEAVED, HASHED }
+
+    public static final int DEFAULT_VIRTUAL_PARTITIONS = Integer.getInteger("dsm.partitions.virtual", 4096);
+    // Smallest virtual partition, in addresses; keeps range requests from fragmenting into tiny pieces
+    public static final int DEFAULT_MIN_PARTITION_SIZE = Integer.getInteger("dsm.partitions.minSize", 16);
+    public static final Mapping DEFAULT_MAPPING =
+            Mapping.valueOf(System.getProperty("dsm.partitions.mapping", "range").toUpperCase(Locale.ROOT));
+    // Groups that own partitions initially; 0 means all of them
+    public static final int DEFAULT_ACTIVE_GROUPS = Integer.getInteger("dsm.partitions.activeGroups", 0);
+
     private final int totalAddresses;
     private final int replicationFactor;
     private final List<String> nodeNames;
-    private final Map<Integer, List<String>> partitionGroups; // Key=partitionID, Value=[primary, replica1, ...]
+    private final Mapping mapping;
+    private final List<List<String>> replicationGroups; // index=groupID, value=[primary, replica1, ...]
+    private final Map<String, Integer> groupOfNode = new HashMap<>();
+    private final int partitionShift; // partitionSize == 1 << partitionShift
+    private final int[] groupOfPartition; // the routing table: virtual partition -> groupID
+    private final long epoch;
 
     public PartitionConfig(int totalAddresses, int replicationFactor, List<String> nodeNames) {
+        this(totalAddresses, replicationFactor, nodeNames, DEFAULT_VIRTUAL_PARTITIONS, DEFAULT_MAPPING);
+    }
+
+    public PartitionConfig(int totalAddresses, int replicationFactor, List<String> nodeNames,
+                           int virtualPartitions, Mapping mapping) {
+        this(totalAddresses, replicationFactor, nodeNames, virtualPartitions, mapping, DEFAULT_ACTIVE_GROUPS);
+    }
+
+    public PartitionConfig(int totalAddresses, int replicationFactor, List<String> nodeNames,
+                           int virtualPartitions, Mapping mapping, int activeGroups) {
+        if (totalAddresses <= 0) {
+            throw new IllegalArgumentException("Total number of addresses must be positive.");
+        }
+        if (virtualPartitions <= 0) {
+            throw new IllegalArgumentException("Number of virtual partitions must be positive.");
+        }
         this.totalAddresses = totalAddresses;
         this.replicationFactor = replicationFactor;
         this.nodeNames = nodeNames;
-        this.partitionGroups = new HashMap<>();
-        initializePartitions();
+        this.mapping = mapping;
+        this.replicationGroups = buildGroups(nodeNames, replicationFactor);
+        if (replicationGroups.isEmpty()) {
+            throw new IllegalArgumentException("Need at least " + (replicationFactor + 1) + " nodes, got " + nodeNames.size());
+        }
+
+        // Round the partition size up to a power of two so routing is a shift
+        int wanted = Math.max(DEFAULT_MIN_PARTITION_SIZE, (int) ((totalAddresses + (long) virtualPartitions - 1) / virtualPartitions));
+        this.partitionShift = 32 - Integer.numberOfLeadingZeros(Math.max(1, wanted) - 1);
+        int count = (int) (((long) totalAddresses + (1L << partitionShift) - 1) >>> partitionShift);
+        this.groupOfPartition = new int[count];
+        this.epoch = 0;
+        int groups = activeGroups > 0 ? Math.min(activeGroups, replicationGroups.size()) : replicationGroups.size();
+        for (int partitionID = 0; partitionID < count; partitionID++) {
+            groupOfPartition[partitionID] = switch (mapping) {
+                case RANGE -> (int) ((long) partitionID * groups / count);
+                case INTERLEAVED -> partitionID % groups;
+                case HASHED -> Math.floorMod(mix(partitionID), groups);
+            };
+        }
+    }
+
+    // A config with every choice spelled out, as a Topology describes it: groups list primary first
+    // and the routing table holds one groupID per virtual partition of partitionSize addresses
+    public PartitionConfig(int totalAddresses, List<List<String>> groups, int partitionSize, Mapping mapping,
+                           int[] routingTable, long epoch) {
+        if (totalAddresses <= 0) {
+            throw new IllegalArgumentException("Total number of addresses must be positive.");
+        }
+        if (groups.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one replication group");
+        }
+        if (Integer.bitCount(partitionSize) != 1) {
+            throw new IllegalArgumentException("Partition size must be a power of two, got " + partitionSize);
+        }
+        this.totalAddresses = totalAddresses;
+        this.replicationFactor = groups.get(0).size() - 1;
+        this.mapping = mapping;
+        List<String> names = new ArrayList<>();
+        List<List<String>> copied = new ArrayList<>();
+        for (int groupID = 0; groupID < groups.size(); groupID++) {
+            List<String> group = groups.get(groupID);
+            if (group.isEmpty()) {
+                throw new IllegalArgumentException("Replication group " + groupID + " has no nodes");
+            }
+            for (String node : group) {
+                if (groupOfNode.put(node, groupID) != null) {
+                    throw new IllegalArgumentException("Node " + node + " is in more than one group");
+                }
+            }
+            names.addAll(group);
+            copied.add(List.copyOf(group));
+        }
+        this.nodeNames = Collections.unmodifiableList(names);
+        this.replicationGroups = Collections.unmodifiableList(copied);
+        this.partitionShift = Integer.numberOfTrailingZeros(partitionSize);
+        int count = (int) (((long) totalAddresses + partitionSize - 1) >>> partitionShift);
+        if (routingTable.length != count) {
+            throw new IllegalArgumentException("Routing table has " + routingTable.length
+                    + " partitions, expected " + count);
+        }
+        for (int groupID : routingTable) {
+            if (groupID < 0 || groupID >= groups.size()) {
+                throw new IllegalArgumentException("Routing table refers to unknown group " + groupID);
+            }
+        }
+        this.groupOfPartition = routingTable.clone();
+        this.epoch = epoch;
+    }
+
+    // Same cluster with a different routing table
+    private PartitionConfig(PartitionConfig base, int[] groupOfPartition, long epoch) {
+        this.totalAddresses = base.totalAddresses;
+        this.replicationFactor = base.replicationFactor;
+        this.nodeNames = base.nodeNames;
+        this.mapping = base.mapping;
+        this.replicationGroups = base.replicationGroups;
+        this.groupOfNode.putAll(base.groupOfNode);
+        this.partitionShift = base.partitionShift;
+        this.groupOfPartition = groupOfPartition;
+        this.epoch = epoch;
+    }
+
+    // This config at a later epoch with the given routing table (one groupID per virtual partition)
+    public PartitionConfig withRoutingTable(int[] groupOfPartition, long epoch) {
+        if (groupOfPartition.length != this.groupOfPartition.length) {
+            throw new IllegalArgumentException("Routing table has " + groupOfPartition.length
+                    + " partitions, expected " + this.groupOfPartition.length);
+        }
+        for (int groupID : groupOfPartition) {
+            if (groupID < 0 || groupID >= replicationGroups.size()) {
+                throw new IllegalArgumentException("Routing table refers to unknown group " + groupID);
+            }
+        }
+        return new PartitionConfig(this, groupOfPartition.clone(), epoch);
+    }
+
+    /**
+     * The next epoch with partitions spread evenly over every group, moving as few as possible.
+     * Over-full groups give up their highest partitions, so RANGE layouts stay mostly contiguous.
+     */
+    public PartitionConfig rebalanced() {
+        int groups = replicationGroups.size();
+        int[] table = groupOfPartition.clone();
+        int[] owned = new int[groups];
+        for (int groupID : table) owned[groupID]++;
+
+        // The fullest groups keep the extra partition when the count does not divide evenly
+        Integer[] byLoad = new Integer[groups];
+        for (int g = 0; g < groups; g++) byLoad[g] = g;
+        Arrays.sort(byLoad, (a, b) -> Integer.compare(owned[b], owned[a]));
+        int[] target = new int[groups];
+        for (int rank = 0; rank < groups; rank++) {
+            target[byLoad[rank]] = table.length / groups + (rank < table.length % groups ? 1 : 0);
+        }
+
+        int receiver = 0;
+        for (int partitionID = table.length - 1; partitionID >= 0; partitionID--) {
+            int from = table[partitionID];
+            if (owned[from] <= target[from]) continue;
+            while (owned[receiver] >= target[receiver]) receiver++;
+            table[partitionID] = receiver;
+            owned[from]--;
+            owned[receiver]++;
+        }
+        return new PartitionConfig(this, table, epoch + 1);
     }
 
-    private void initializePartitions() {
-        int numPartitions = nodeNames.size() / (replicationFactor + 1);
+    private List<List<String>> buildGroups(List<String> nodeNames, int replicationFactor) {
+        int numGroups = nodeNames.size() / (replicationFactor + 1);
+        List<List<String>> groups = new ArrayList<>();
         int nodeIndex = 0;
-        for (int partitionID = 0; partitionID < numPartitions; partitionID++) {
+        for (int groupID = 0; groupID < numGroups; groupID++) {
             List<String> group = new ArrayList<>();
             for (int i = 0; i <= replicationFactor; i++) {
-                group.add(nodeNames.get(nodeIndex++));
+                String node = nodeNames.get(nodeIndex++);
+                group.add(node);
+                groupOfNode.put(node, groupID);
             }
-            partitionGroups.put(partitionID, group);
+            groups.add(Collections.unmodifiableList(group));
         }
+        return Collections.unmodifiableList(groups);
     }
 
     // Get the replication group for a given address
     public List<String> getReplicationGroup(Address address) {
-        int numPartitions = partitionGroups.size();
-        int addressValue = address.getValue();
-
-        if (numPartitions == 0) {
-            throw new IllegalStateException("No partitions have been initialized.");
-        }
+        return replicationGroups.get(getGroupId(address.getValue()));
+    }
 
-        if(addressValue>=totalAddresses){
+    // Get the virtual partition a given address belongs to
+    public int getPartitionId(int addressValue) {
+        if (addressValue < 0 || addressValue >= totalAddresses) {
             throw new IllegalArgumentException("Address " + addressValue + " is out of bounds (max allowed = " + (totalAddresses - 1) + ")");
         }
+        return addressValue >>> partitionShift;
+    }
 
-        if (totalAddresses == 0) {
-            throw new IllegalStateException("Total number of addresses is zero.");
-        }
+    // Get the replication group that owns a given address
+    public int getGroupId(int addressValue) {
+        return groupOfPartition[getPartitionId(addressValue)];
+    }
+
+    public int getGroupOfPartition(int partitionID) {
+        return groupOfPartition[partitionID];
+    }
+
+    // Group a node belongs to, or -1 if it is not part of this config
+    public int getGroupOfNode(String nodeName) {
+        return groupOfNode.getOrDefault(nodeName, -1);
+    }
 
-        int partitionSize = totalAddresses / numPartitions;
+    // First address of a virtual partition
+    public int getPartitionStart(int partitionID) {
+        return partitionID << partitionShift;
+    }
 
-        // Compute the partition ID and clamp it to the maximum allowed ID
-        int partitionID = Math.min(
-                addressValue / partitionSize,
-                numPartitions - 1
-        );
+    // Last address of a virtual partition; the last one may be cut short by totalAddresses
+    public int getPartitionEnd(int partitionID) {
+        return (int) Math.min(totalAddresses - 1L, ((long) (partitionID + 1) << partitionShift) - 1);
+    }
+
+    // Last address of the run of consecutive addresses starting at addressValue owned by the same group
+    public int getGroupRunEnd(int addressValue) {
+        int partitionID = getPartitionId(addressValue);
+        int groupID = groupOfPartition[partitionID];
+        while (partitionID + 1 < groupOfPartition.length && groupOfPartition[partitionID + 1] == groupID) {
+            partitionID++;
+        }
+        return getPartitionEnd(partitionID);
+    }
+
+    public boolean hasPartitions(int groupID) {
+        for (int owner : groupOfPartition) {
+            if (owner == groupID) return true;
+        }
+        return false;
+    }
 
-        return partitionGroups.get(partitionID);
+    // Lowest address a group owns; with RANGE mapping the group owns everything up to getGroupEnd
+    public int getGroupStart(int groupID) {
+        for (int partitionID = 0; partitionID < groupOfPartition.length; partitionID++) {
+            if (groupOfPartition[partitionID] == groupID) return getPartitionStart(partitionID);
+        }
+        throw new IllegalArgumentException("Group " + groupID + " owns no partitions");
     }
 
+    // Highest address a group owns
+    public int getGroupEnd(int groupID) {
+        for (int partitionID = groupOfPartition.length - 1; partitionID >= 0; partitionID--) {
+            if (groupOfPartition[partitionID] == groupID) return getPartitionEnd(partitionID);
+        }
+        throw new IllegalArgumentException("Group " + groupID + " owns no partitions");
+    }
 
     // Get the primary node for an address
     public String getPrimaryNode(Address address) {
         return getReplicationGroup(address).get(0);
     }
 
-    public Map<Integer, List<String>> getPartitionGroups() {
-        return partitionGroups;
+    public List<String> getGroup(int groupID) {
+        return replicationGroups.get(groupID);
+    }
+
+    public List<List<String>> getReplicationGroups() {
+        return replicationGroups;
+    }
+
+    public List<String> getNodeNames() {
+        return nodeNames;
     }
 
     public int getTotalAddresses() {
         return totalAddresses;
     }
 
-}
\ No newline at end of file
+    public int getVirtualPartitionCount() {
+        return groupOfPartition.length;
+    }
+
+    public int getPartitionSize() {
+        return 1 << partitionShift;
+    }
+
+    public Mapping getMapping() {
+        return mapping;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    // Copy of the routing table, one groupID per virtual partition
+    public int[] getRoutingTable() {
+        return groupOfPartition.clone();
+    }
+
+    // Murmur3 finalizer, so HASHED scatters neighbouring partitions
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Reads parked on a replica until it has applied the sequence number the client already saw.
+ * Waiters sit in a min-heap ordered by required sequence number, so any number of reads can
+ * wait on the same sequence and {@link #release} pops exactly the satisfied ones in
+ * O(k log n) instead of scanning everything that is parked.
+ *
+ * <p>With a timeout configured, a read that is still parked after {@code timeoutMillis} is
+ * handed to {@code onTimeout} instead (the node redirects it to the primary), so a lagging
+ * replica costs the client a bounded delay rather than an unbounded one.
+ */
+public class PendingReads implements AutoCloseable {
+    // 0 disables timeouts: reads wait for as long as the replica takes to catch up
+    public static final long DEFAULT_TIMEOUT_MILLIS = Long.getLong("dsm.read.timeoutMillis", 0);
+
+    private static final class Waiter implements Comparable<Waiter> {
+        final DSMMessage read;
+        final long requiredSequence;
+        final long order; // breaks ties so reads on the same sequence are served FIFO
+        final long parkedNanos;
+        final long deadlineNanos;
+        boolean done; // released or timed out, guarded by the PendingReads lock
+
+        Waiter(DSMMessage read, long requiredSequence, long order, long parkedNanos, long deadlineNanos) {
+            this.read = read;
+            this.requiredSequence = requiredSequence;
+            this.order = order;
+            this.parkedNanos = parkedNanos;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int bySequence = Long.compare(requiredSequence, other.requiredSequence);
+            return bySequence != 0 ? bySequence : Long.compare(order, other.order);
+        }
+    }
+
+    private final String nodeName;
+    private final long timeoutNanos;
+    private final Consumer<DSMMessage> serve;
+    private final Consumer<DSMMessage> onTimeout;
+    private final ScheduledExecutorService sweeper; // null when timeouts are off
+    private final LatencyHistogram waitTimes = new LatencyHistogram(); // park to release, for served reads
+    private final LongAdder timeouts = new LongAdder();
+
+    // All guarded by this
+    private final PriorityQueue<Waiter> bySequence = new PriorityQueue<>();
+    private final ArrayDeque<Waiter> byDeadline = new ArrayDeque<>(); // park order == deadline order
+    private long appliedSequence;
+    private long nextOrder;
+    private int timedOutInHeap; // timed-out waiters not yet dropped from the heap
+
+    public PendingReads(String nodeName, Consumer<DSMMessage> serve, Consumer<DSMMessage> onTimeout) {
+        this(nodeName, DEFAULT_TIMEOUT_MILLIS, serve, onTimeout);
+    }
+
+    public PendingReads(String nodeName, long timeoutMillis, Consumer<DSMMessage> serve, Consumer<DSMMessage> onTimeout) {
+        this.nodeName = nodeName;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.serve = serve;
+        this.onTimeout = onTimeout;
+        if (timeoutMillis > 0) {
+            this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "read-timeouts-" + nodeName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1, timeoutMillis / 4);
+            sweeper.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.sweeper = null;
+        }
+    }
+
+    /**
+     * Parks read until its sequence number has been released. Returns false without parking if
+     * it is already satisfied, in which case the caller should serve it directly.
+     */
+    public boolean park(DSMMessage read) {
+        return park(read, read.getSequenceNumber());
+    }
+
+    // Same, for a read that needs a sequence number other than the one it carries
+    public boolean park(DSMMessage read, long requiredSequence) {
+        synchronized (this) {
+            if (requiredSequence <= appliedSequence) return false;
+            long now = System.nanoTime();
+            Waiter waiter = new Waiter(read, requiredSequence, nextOrder++, now, now + timeoutNanos);
+            bySequence.add(waiter);
+            if (sweeper != null) byDeadline.addLast(waiter);
+            return true;
+        }
+    }
+
+    // Serves every read waiting on a sequence number at or below appliedSequence.
+    public void release(long appliedSequence) {
+        List<Waiter> ready = null;
+        synchronized (this) {
+            if (appliedSequence <= this.appliedSequence) return;
+            this.appliedSequence = appliedSequence;
+            Waiter head;
+            while ((head = bySequence.peek()) != null && head.requiredSequence <= appliedSequence) {
+                bySequence.poll();
+                if (head.done) {
+                    timedOutInHeap--;
+                    continue;
+                }
+                head.done = true;
+                if (ready == null) ready = new ArrayList<>();
+                ready.add(head);
+            }
+        }
+        if (ready == null) return;
+        long now = System.nanoTime();
+        for (Waiter waiter : ready) {
+            waitTimes.record(now - waiter.parkedNanos);
+            serve.accept(waiter.read);
+        }
+    }
+
+    public synchronized int size() {
+        return bySequence.size() - timedOutInHeap;
+    }
+
+    public LatencyHistogram waitTimes() {
+        return waitTimes;
+    }
+
+    public long timeouts() {
+        return timeouts.sum();
+    }
+
+    private void expire() {
+        List<Waiter> expired = null;
+        synchronized (this) {
+            long now = System.nanoTime();
+            Waiter head;
+            while ((head = byDeadline.peekFirst()) != null && (head.done || now - head.deadlineNanos >= 0)) {
+                byDeadline.pollFirst();
+                if (head.done) continue;
+                head.done = true;
+                timedOutInHeap++;
+                if (expired == null) expired = new ArrayList<>();
+                expired.add(head);
+            }
+            // Timed-out waiters are dropped lazily; compact once they make up most of the heap
+            if (timedOutInHeap > 64 && timedOutInHeap > bySequence.size() / 2) {
+                bySequence.removeIf(waiter -> waiter.done);
+                timedOutInHeap = 0;
+            }
+        }
+        if (expired == null) return;
+        timeouts.add(expired.size());
+        for (Waiter waiter : expired) {
+            try {
+                onTimeout.accept(waiter.read);
+            } catch (RuntimeException e) {
+                System.err.println("[" + nodeName + "] Failed to redirect timed out read: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (sweeper != null) sweeper.shutdownNow();
+    }
+}
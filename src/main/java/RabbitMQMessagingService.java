@@ -1,16 +1,26 @@
 import com.rabbitmq.client.*;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeoutException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import java.util.function.Consumer;
 
 public class RabbitMQMessagingService implements MessagingService {
+    // Unacknowledged deliveries the broker lets a node's consumer hold; the rest wait in the broker's
+    // queue instead of the node's heap
+    public static final int PREFETCH = Integer.getInteger("dsm.rabbitmq.prefetch", 256);
+
     private final Connection connection;
     private final Channel channel;
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final MessageCodec codec;
+    private final Set<String> declaredQueues = ConcurrentHashMap.newKeySet();
 
     public RabbitMQMessagingService() throws IOException, TimeoutException {
+        this(MessageCodec.fromSystemProperties());
+    }
+
+    public RabbitMQMessagingService(MessageCodec codec) throws IOException, TimeoutException {
+        this.codec = codec;
         ConnectionFactory factory = new ConnectionFactory();
         factory.setHost("localhost");
         connection = factory.newConnection();
@@ -18,24 +28,48 @@ public class RabbitMQMessagingService implements MessagingService {
     }
 
     public void send(String queue, DSMMessage msg) throws IOException {
-        String json = objectMapper.writeValueAsString(msg);
-        channel.queueDeclare(queue, false, false, false, null);
-        channel.basicPublish("", queue, null, json.getBytes(StandardCharsets.UTF_8));
+        byte[] body = codec.encode(msg);
+        synchronized (channel) { // channels must not be used for publishing by two threads at once
+            if (declaredQueues.add(queue)) {
+                channel.queueDeclare(queue, false, false, false, null);
+            }
+            channel.basicPublish("", queue, null, body);
+        }
     }
 
-    public void sendReply(String replyQueue, String value) throws IOException {
-        channel.queueDeclare(replyQueue, false, false, false, null);
-        channel.basicPublish("", replyQueue, null, value.getBytes(StandardCharsets.UTF_8));
+    // Reply queues are declared by their listener, so replies are published without a declare.
+    public void sendReply(String replyQueue, DSMMessage reply) throws IOException {
+        byte[] body = codec.encode(reply);
+        synchronized (channel) {
+            channel.basicPublish("", replyQueue, null, body);
+        }
     }
 
+    // Deliveries are acked once the handler returns, i.e. once the node has queued or refused them.
+    // When its workers fall behind the handler blocks, acks stop and the broker stops delivering.
     public void startMessageListener(String queueName, Consumer<DSMMessage> handler) throws IOException {
-        channel.queueDeclare(queueName, false, false, false, null);
-        channel.basicConsume(queueName, true, (consumerTag, delivery) -> {
-            DSMMessage msg = objectMapper.readValue(delivery.getBody(), DSMMessage.class);
-            handler.accept(msg);
+        synchronized (channel) {
+            channel.queueDeclare(queueName, false, false, false, null);
+            channel.basicQos(PREFETCH);
+        }
+        channel.basicConsume(queueName, false, (consumerTag, delivery) -> {
+            try {
+                handler.accept(codec.decode(delivery.getBody()));
+            } finally {
+                synchronized (channel) {
+                    channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                }
+            }
         }, consumerTag -> {});
     }
 
+    // Reply queues are exclusive to this connection and deleted by the broker when it closes.
+    public void startReplyListener(String replyQueue, Consumer<DSMMessage> handler) throws IOException {
+        channel.queueDeclare(replyQueue, false, true, true, null);
+        channel.basicConsume(replyQueue, true, (consumerTag, delivery) ->
+                handler.accept(codec.decode(delivery.getBody())), consumerTag -> {});
+    }
+
     public void close() throws IOException, TimeoutException {
         channel.close();
         connection.close();
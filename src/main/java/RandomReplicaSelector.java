@@ -0,0 +1,12 @@
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Uniformly random choice that ignores all feedback.
+ */
+public class RandomReplicaSelector implements ReplicaSelector {
+    @Override
+    public String select(List<String> replicas, long requiredSequence) {
+        return replicas.get(ThreadLocalRandom.current().nextInt(replicas.size()));
+    }
+}
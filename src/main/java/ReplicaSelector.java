@@ -0,0 +1,33 @@
+import java.util.List;
+
+/**
+ * Chooses which replica of a group serves a read. Nodes and clients report what they observe
+ * (requests sent, replies and their latency, replicated sequence numbers) so implementations
+ * can steer reads away from slow or lagging replicas.
+ */
+public interface ReplicaSelector {
+    // Picks one of replicas for a read that must see requiredSequence; replicas is never empty
+    String select(List<String> replicas, long requiredSequence);
+
+    // A read was sent to replica
+    default void onSend(String replica) {}
+
+    // replica answered a read after latencyNanos, serving it at sequence
+    default void onReply(String replica, long latencyNanos, long sequence) {}
+
+    // A read sent to replica will not be answered (send failure or client shutdown)
+    default void onFailure(String replica) {}
+
+    // replica is known to have applied everything up to sequence (e.g. from a REPLICATE_ACK)
+    default void onSequence(String replica, long sequence) {}
+
+    // Picks the selector named by the "dsm.replicaSelector" system property: "p2c" (default) or "random".
+    static ReplicaSelector fromSystemProperties() {
+        String name = System.getProperty("dsm.replicaSelector", "p2c");
+        return switch (name.toLowerCase()) {
+            case "p2c" -> new LeastLoadedReplicaSelector();
+            case "random" -> new RandomReplicaSelector();
+            default -> throw new IllegalArgumentException("Unknown replica selector: " + name);
+        };
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Groups a primary's writes into REPLICATE_BATCH messages. The open batch is sent to every
+ * replica once it holds {@code maxBatchSize} entries, or {@code lingerMicros} after its first
+ * entry was added, whichever comes first. Entries are appended in sequence order and batches
+ * go out in the order they were filled.
+ *
+ * <p>The transport may still lose a batch, so each one names the sequence number of the batch
+ * before it, and a replica that has not got that far answers REPLICATE_NACK instead of acking.
+ * Sent batches are kept until every replica has acked them and are sent again from a replica's
+ * last ack on a NACK, or when its acks have not moved for {@code resendMillis}. At most
+ * {@code maxRetainedBatches} are kept; a replica that falls behind the oldest is moved forward
+ * without the missing data, which is reported and left to anti-entropy.
+ */
+public class ReplicationBatcher {
+    public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("dsm.replication.batchSize", 64);
+    public static final long DEFAULT_LINGER_MICROS = Long.getLong("dsm.replication.lingerMicros", 50);
+    public static final long RESEND_MILLIS = Long.getLong("dsm.replication.resendMillis", 1000);
+    public static final int MAX_RETAINED_BATCHES = Integer.getInteger("dsm.replication.maxRetainedBatches", 16384);
+
+    private final String primaryName;
+    private final List<String> replicas;
+    private final MessagingService messagingService;
+    private final int maxBatchSize;
+    private final long lingerMicros;
+    private final ScheduledExecutorService timer;
+
+    // The open batch, guarded by this
+    private final int[] addresses;
+    private final int[] values;
+    private final long[] sequenceNumbers;
+    private int size;
+    private ScheduledFuture<?> lingerTask;
+
+    // Sent batches not yet acked by every replica, oldest first, and where each replica is. Acks never
+    // wait for this batcher's lock, which a send blocked on a full replica may be holding.
+    private final ConcurrentLinkedDeque<DSMMessage> retained = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger retainedCount = new AtomicInteger();
+    private final Map<String, Long> acknowledged = new ConcurrentHashMap<>();
+    private final Map<String, Long> ackedAtLastCheck = new HashMap<>(); // guarded by this
+    private final Map<String, long[]> lastResend = new HashMap<>(); // replica -> {from sequence, nanoTime}, guarded by this
+    private long lastSent; // sequence number of the newest batch sent
+
+    // sequenceNumber: where the replicas are expected to be, the primary's own sequence at startup
+    public ReplicationBatcher(String primaryName, List<String> replicas, MessagingService messagingService,
+                              long sequenceNumber) {
+        this(primaryName, replicas, messagingService, sequenceNumber, DEFAULT_BATCH_SIZE, DEFAULT_LINGER_MICROS);
+    }
+
+    public ReplicationBatcher(String primaryName, List<String> replicas, MessagingService messagingService,
+                              long sequenceNumber, int maxBatchSize, long lingerMicros) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.primaryName = primaryName;
+        this.replicas = replicas;
+        this.messagingService = messagingService;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerMicros = lingerMicros;
+        this.addresses = new int[maxBatchSize];
+        this.values = new int[maxBatchSize];
+        this.sequenceNumbers = new long[maxBatchSize];
+        this.lastSent = sequenceNumber;
+        for (String replica : replicas) {
+            acknowledged.put(replica, sequenceNumber);
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "replication-linger-" + primaryName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (RESEND_MILLIS > 0) {
+            timer.scheduleWithFixedDelay(this::resendStalled, RESEND_MILLIS, RESEND_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void append(int address, int value, long sequenceNumber) {
+        addresses[size] = address;
+        values[size] = value;
+        sequenceNumbers[size] = sequenceNumber;
+        size++;
+        if (size >= maxBatchSize || lingerMicros <= 0) {
+            flush();
+        } else if (size == 1) {
+            lingerTask = timer.schedule(this::flush, lingerMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    // Appends entries that share one sequence number. They always travel in the same batch,
+    // so a replica never exposes part of the unit.
+    public synchronized void append(int[] unitAddresses, int[] unitValues, long sequenceNumber) {
+        if (size + unitAddresses.length > maxBatchSize) {
+            flush();
+        }
+        if (unitAddresses.length > maxBatchSize) {
+            long[] unitSequenceNumbers = new long[unitAddresses.length];
+            Arrays.fill(unitSequenceNumbers, sequenceNumber);
+            send(unitAddresses, unitValues, unitSequenceNumbers, sequenceNumber);
+            return;
+        }
+        for (int i = 0; i < unitAddresses.length; i++) {
+            addresses[size] = unitAddresses[i];
+            values[size] = unitValues[i];
+            sequenceNumbers[size] = sequenceNumber;
+            size++;
+        }
+        if (size >= maxBatchSize || lingerMicros <= 0) {
+            flush();
+        } else if (size == unitAddresses.length) {
+            lingerTask = timer.schedule(this::flush, lingerMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    public synchronized void flush() {
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+        if (size == 0) return;
+        int count = size;
+        size = 0;
+        send(Arrays.copyOf(addresses, count), Arrays.copyOf(values, count), Arrays.copyOf(sequenceNumbers, count),
+                sequenceNumbers[count - 1]);
+    }
+
+    // Moves the replicas' sequence number forward to sequenceNumber without any data, after
+    // everything appended so far. Used when the primary skips ahead on a partition handoff.
+    public synchronized void advanceTo(long sequenceNumber) {
+        flush();
+        send(new int[0], new int[0], new long[0], sequenceNumber);
+    }
+
+    // The replica has everything up to sequenceNumber; batches every replica has are let go
+    public void acknowledged(String replica, long sequenceNumber) {
+        if (acknowledged.computeIfPresent(replica, (r, acked) -> Math.max(acked, sequenceNumber)) == null) return;
+        long everywhere = Long.MAX_VALUE;
+        for (long acked : acknowledged.values()) everywhere = Math.min(everywhere, acked);
+        DSMMessage oldest;
+        while ((oldest = retained.peekFirst()) != null && oldest.getSequenceNumber() <= everywhere) {
+            if (retained.remove(oldest)) retainedCount.decrementAndGet();
+        }
+    }
+
+    // The replica refused a batch because it only has up to sequenceNumber: sends it everything after that,
+    // from the timer thread so the caller never waits. Every batch in flight behind the lost one is refused
+    // with the same sequenceNumber, so those NACKs only resend again once RESEND_MILLIS have passed.
+    public void resend(String replica, long sequenceNumber) {
+        if (!acknowledged.containsKey(replica)) return;
+        timer.execute(() -> {
+            synchronized (this) {
+                long[] last = lastResend.get(replica);
+                if (last != null && last[0] == sequenceNumber
+                        && System.nanoTime() - last[1] < TimeUnit.MILLISECONDS.toNanos(RESEND_MILLIS)) return;
+                resendFrom(replica, sequenceNumber);
+            }
+        });
+    }
+
+    // Replicas whose acks are behind and have not moved since the last check may have lost the newest batch,
+    // which no later batch would reveal
+    private synchronized void resendStalled() {
+        for (String replica : replicas) {
+            long acked = acknowledged.get(replica);
+            Long before = ackedAtLastCheck.put(replica, acked);
+            if (acked < lastSent && before != null && before == acked) {
+                resendFrom(replica, acked);
+            }
+        }
+    }
+
+    private void resendFrom(String replica, long sequenceNumber) {
+        lastResend.put(replica, new long[] {sequenceNumber, System.nanoTime()});
+        DSMMessage oldest = retained.peekFirst();
+        if (oldest == null || oldest.getCorrelationId() > sequenceNumber) {
+            // Whatever it misses is no longer kept: move it to the oldest batch still here, or to lastSent
+            long to = oldest != null ? oldest.getCorrelationId() : lastSent;
+            System.err.println("[" + primaryName + "] " + replica + " is at sequence " + sequenceNumber
+                    + " but replication only keeps batches after " + to + "; skipping it ahead, anti-entropy repairs the rest");
+            sendTo(replica, new DSMMessage(DSMMessage.Type.REPLICATE_BATCH, null, 0, primaryName, to, sequenceNumber,
+                    new int[0], new int[0], new long[0]));
+        }
+        int resent = 0;
+        for (DSMMessage batch : retained) {
+            if (batch.getSequenceNumber() > sequenceNumber) {
+                sendTo(replica, batch);
+                resent++;
+            }
+        }
+        System.err.println("[" + primaryName + "] Resent " + resent + " replication batches after sequence "
+                + sequenceNumber + " to " + replica);
+    }
+
+    // Called while holding the lock so batches cannot overtake each other. The batch's correlationId is
+    // the sequence number of the one before it.
+    private void send(int[] batchAddresses, int[] batchValues, long[] batchSequenceNumbers, long sequenceNumber) {
+        DSMMessage batch = new DSMMessage(DSMMessage.Type.REPLICATE_BATCH, null, 0, primaryName, sequenceNumber,
+                lastSent, batchAddresses, batchValues, batchSequenceNumbers);
+        lastSent = sequenceNumber;
+        retained.addLast(batch);
+        if (retainedCount.incrementAndGet() > MAX_RETAINED_BATCHES && retained.pollFirst() != null) {
+            retainedCount.decrementAndGet();
+        }
+        for (String replica : replicas) {
+            sendTo(replica, batch);
+        }
+    }
+
+    private void sendTo(String replica, DSMMessage batch) {
+        try {
+            messagingService.send(replica, batch);
+        } catch (IOException e) {
+            System.err.println("Replication failed to " + replica + ": " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        flush();
+        timer.shutdownNow();
+    }
+}
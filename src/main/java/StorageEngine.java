@@ -0,0 +1,27 @@
+/**
+ * Word storage backing a {@link DSMNode}'s address range.
+ * Addresses that were never written read as 0. Implementations must allow
+ * reads and writes from several threads at once.
+ */
+public interface StorageEngine {
+    int read(int address);
+
+    void write(int address, int value);
+
+    // Number of words currently backed by memory (for diagnostics)
+    long allocatedWords();
+
+    // Page-level access, used for snapshots and bulk copies. Page i covers the
+    // addresses [firstAddress + i * pageSize(), firstAddress + (i + 1) * pageSize()).
+    int pageSize();
+
+    int pageCount();
+
+    int firstAddress();
+
+    // Copies a page into dest; returns false (leaving dest untouched) if the page was never written
+    boolean copyPage(int pageIndex, int[] dest);
+
+    // Replaces a whole page with the contents of src
+    void writePage(int pageIndex, int[] src);
+}
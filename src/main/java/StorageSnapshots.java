@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Compact snapshots of a {@link StorageEngine}: only pages that were ever written are stored.
+ * A snapshot file is written under a temporary name and renamed once complete, so a crash
+ * mid-snapshot leaves the previous snapshot in place.
+ *
+ * Snapshots are fuzzy: pages are copied while writes continue, and the recorded sequence
+ * number is the highest one known to be fully applied when copying started. Replaying the
+ * write-ahead log from that sequence number on top of the snapshot restores the exact state,
+ * because replaying a write is idempotent.
+ */
+public class StorageSnapshots {
+    private static final int MAGIC = 0x44534D53; // "DSMS"
+    private static final int FORMAT_VERSION = 1;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    private final Path directory;
+
+    public StorageSnapshots(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /** Writes a snapshot tagged with sequenceNumber and removes older ones. */
+    public void write(StorageEngine storage, long sequenceNumber) throws IOException {
+        Path target = directory.resolve(String.format("%s%020d%s", PREFIX, sequenceNumber, SUFFIX));
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        int pageSize = storage.pageSize();
+        int[] page = new int[pageSize];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 + pageSize * 4);
+        IntBuffer ints = buffer.asIntBuffer();
+
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(28);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(sequenceNumber)
+                    .putInt(storage.firstAddress()).putInt(pageSize).putInt(storage.pageCount()).flip();
+            writeFully(out, header);
+            for (int i = 0; i < storage.pageCount(); i++) {
+                if (!storage.copyPage(i, page)) continue;
+                buffer.clear();
+                buffer.putInt(i);
+                ints.clear();
+                ints.position(1);
+                ints.put(page);
+                buffer.position(0).limit(4 + pageSize * 4);
+                writeFully(out, buffer);
+            }
+            writeFully(out, ByteBuffer.allocate(4).putInt(0, -1)); // end marker
+            out.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (Path old : snapshotFiles()) {
+            if (!old.equals(target)) Files.deleteIfExists(old);
+        }
+    }
+
+    /** Loads the newest snapshot into storage and returns its sequence number, or 0 if there is none. */
+    public long loadLatest(StorageEngine storage) throws IOException {
+        List<Path> files = snapshotFiles();
+        if (files.isEmpty()) return 0;
+        Path latest = files.get(files.size() - 1);
+        try (FileChannel in = FileChannel.open(latest, StandardOpenOption.READ)) {
+            ByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (data.getInt() != MAGIC || data.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unrecognised snapshot file " + latest);
+            }
+            long sequenceNumber = data.getLong();
+            int firstAddress = data.getInt();
+            int pageSize = data.getInt();
+            int pageCount = data.getInt();
+            if (firstAddress != storage.firstAddress() || pageSize != storage.pageSize()
+                    || pageCount != storage.pageCount()) {
+                throw new IOException("Snapshot " + latest + " does not match this node's storage layout");
+            }
+            int[] page = new int[pageSize];
+            while (true) {
+                int pageIndex = data.getInt();
+                if (pageIndex < 0) break;
+                data.asIntBuffer().get(page);
+                data.position(data.position() + pageSize * 4);
+                storage.writePage(pageIndex, page);
+            }
+            return sequenceNumber;
+        }
+    }
+
+    private List<Path> snapshotFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> {
+                        String name = f.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                    })
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) out.write(buffer);
+    }
+}
@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Spreads a node's incoming messages over a fixed set of worker threads. Messages with the
+ * same key always go to the same worker, so they are handled one at a time and in arrival
+ * order, while messages with different keys run in parallel.
+ */
+public class StripedDispatcher implements AutoCloseable {
+    public static final int DEFAULT_WORKERS =
+            Integer.getInteger("dsm.node.workers", Math.min(8, Runtime.getRuntime().availableProcessors()));
+    public static final int DEFAULT_QUEUE_CAPACITY = Integer.getInteger("dsm.node.workerQueueCapacity", 16384);
+
+    private final String name;
+    private final List<Mailbox<DSMMessage>> workers;
+
+    public StripedDispatcher(String name, int workerCount, int queueCapacity, Consumer<DSMMessage> handler) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be positive");
+        }
+        this.name = name;
+        this.workers = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            Mailbox<DSMMessage> worker = new Mailbox<>(name + "-worker-" + i, queueCapacity);
+            worker.start(handler);
+            workers.add(worker);
+        }
+    }
+
+    // Waits while the worker's queue is full, holding up the transport that delivered msg
+    public void dispatch(int key, DSMMessage msg) {
+        try {
+            workers.get(stripe(key)).put(msg);
+        } catch (IOException e) {
+            System.err.println("[" + name + "] Dropping " + msg.getType() + ": " + e.getMessage());
+        }
+    }
+
+    // Queues msg only if its worker has room; the caller answers it otherwise
+    public boolean offer(int key, DSMMessage msg) {
+        return workers.get(stripe(key)).offer(msg);
+    }
+
+    public int getWorkerCount() {
+        return workers.size();
+    }
+
+    // Messages waiting across all workers
+    public int queueDepth() {
+        int depth = 0;
+        for (Mailbox<DSMMessage> worker : workers) depth += worker.size();
+        return depth;
+    }
+
+    @Override
+    public void close() {
+        for (Mailbox<DSMMessage> worker : workers) worker.stop();
+    }
+
+    private int stripe(int key) {
+        int h = key * 0x9E3779B9; // spread neighbouring keys over workers
+        return Math.floorMod(h ^ (h >>> 16), workers.size());
+    }
+}
@@ -0,0 +1,146 @@
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What ConfigServer hands out: the shape of the cluster, without any node runtime. It lists the
+ * replication groups (primary first), the routing table that assigns each virtual partition to a
+ * group, the epoch that table belongs to and each node's endpoint for direct transports. Its size
+ * depends on the number of nodes and virtual partitions, never on the number of addresses, so a
+ * node or client can fetch and parse it cheaply whatever the address space.
+ *
+ * <p>Serialized as JSON with a {@code version} field; readers refuse versions they do not know
+ * rather than guess at a layout.
+ */
+public class Topology {
+    public static final int FORMAT_VERSION = 1;
+
+    // Endpoints handed out for direct (NIO) transports: host and basePort + position in the node list
+    private static final String ENDPOINT_HOST = System.getProperty("dsm.nio.host", "localhost");
+    private static final int ENDPOINT_BASE_PORT = Integer.getInteger("dsm.nio.basePort", 7000);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final int version;
+    private final long epoch;
+    private final int totalAddresses;
+    private final int partitionSize;
+    private final PartitionConfig.Mapping mapping;
+    private final List<List<String>> groups;
+    private final Map<String, String> endpoints; // node -> host:port
+    private final int[] routingTable; // virtual partition -> groupID
+
+    @JsonCreator
+    public Topology(
+            @JsonProperty("version") int version,
+            @JsonProperty("epoch") long epoch,
+            @JsonProperty("totalAddresses") int totalAddresses,
+            @JsonProperty("partitionSize") int partitionSize,
+            @JsonProperty("mapping") PartitionConfig.Mapping mapping,
+            @JsonProperty("groups") List<List<String>> groups,
+            @JsonProperty("endpoints") Map<String, String> endpoints,
+            @JsonProperty("routingTable") int[] routingTable) {
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported topology version " + version + ", expected " + FORMAT_VERSION);
+        }
+        if (groups == null || routingTable == null) {
+            throw new IllegalArgumentException("Topology needs groups and a routing table");
+        }
+        this.version = version;
+        this.epoch = epoch;
+        this.totalAddresses = totalAddresses;
+        this.partitionSize = partitionSize;
+        this.mapping = mapping;
+        this.groups = groups;
+        this.endpoints = endpoints != null ? endpoints : Map.of();
+        this.routingTable = routingTable;
+    }
+
+    // Describes config, giving every node an endpoint from dsm.nio.host and dsm.nio.basePort
+    public static Topology of(PartitionConfig config) {
+        Map<String, String> endpoints = new LinkedHashMap<>();
+        for (String node : config.getNodeNames()) {
+            endpoints.put(node, ENDPOINT_HOST + ":" + (ENDPOINT_BASE_PORT + endpoints.size()));
+        }
+        return describe(config, endpoints);
+    }
+
+    // The same cluster and endpoints at config's epoch and routing table
+    public Topology withConfig(PartitionConfig config) {
+        return describe(config, endpoints);
+    }
+
+    private static Topology describe(PartitionConfig config, Map<String, String> endpoints) {
+        return new Topology(FORMAT_VERSION, config.getEpoch(), config.getTotalAddresses(), config.getPartitionSize(),
+                config.getMapping(), config.getReplicationGroups(), endpoints, config.getRoutingTable());
+    }
+
+    // The routing side of this topology; checks that groups and table fit together
+    public PartitionConfig toPartitionConfig() {
+        return new PartitionConfig(totalAddresses, groups, partitionSize, mapping, routingTable, epoch);
+    }
+
+    public static Topology fromJson(byte[] json) throws IOException {
+        return MAPPER.readValue(json, Topology.class);
+    }
+
+    public byte[] toJson() throws IOException {
+        return MAPPER.writeValueAsBytes(this);
+    }
+
+    public byte[] toPrettyJson() throws IOException {
+        return MAPPER.writerWithDefaultPrettyPrinter().writeValueAsBytes(this);
+    }
+
+    // Every node, group by group
+    @JsonIgnore
+    public List<String> getNodeNames() {
+        List<String> names = new ArrayList<>();
+        for (List<String> group : groups) names.addAll(group);
+        return Collections.unmodifiableList(names);
+    }
+
+    // host:port of a node, or null if the topology has none for it
+    public String getEndpoint(String node) {
+        return endpoints.get(node);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public int getTotalAddresses() {
+        return totalAddresses;
+    }
+
+    public int getPartitionSize() {
+        return partitionSize;
+    }
+
+    public PartitionConfig.Mapping getMapping() {
+        return mapping;
+    }
+
+    public List<List<String>> getGroups() {
+        return groups;
+    }
+
+    public Map<String, String> getEndpoints() {
+        return endpoints;
+    }
+
+    public int[] getRoutingTable() {
+        return routingTable;
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Offline tool that reads the files written by {@link Tracer} on every node and client and
+ * prints one timeline per request: each step it took, on which node, and when relative to the
+ * first. Events carrying a client and correlation id belong to that request; replicas only see
+ * the address and sequence number of a write, so their events are joined to the request the
+ * primary applied under that sequence number.
+ *
+ * <pre>
+ *   java TraceTimeline [--address A] [--slowest] [--limit N] &lt;trace dir or files&gt;...
+ *     --address A   only requests for address A
+ *     --slowest     longest timelines first instead of in start order
+ *     --limit N     print at most N requests (default 50)
+ * </pre>
+ *
+ * Timestamps come from each process's wall clock, so steps on different machines are only as
+ * well ordered as their clocks are synchronized.
+ */
+public class TraceTimeline {
+    private record Entry(String node, long timeNanos, Tracer.Event event, DSMMessage.Type type,
+                         int address, long sequenceNumber, long correlationId, int client) {}
+
+    private record RequestKey(int client, long correlationId) {}
+
+    public static void main(String[] args) throws IOException {
+        Integer address = null;
+        boolean slowest = false;
+        int limit = 50;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--address" -> address = Integer.parseInt(args[++i]);
+                case "--slowest" -> slowest = true;
+                case "--limit" -> limit = Integer.parseInt(args[++i]);
+                default -> {
+                    Path path = Path.of(args[i]);
+                    if (Files.isDirectory(path)) {
+                        try (Stream<Path> listing = Files.list(path)) {
+                            listing.filter(p -> p.toString().endsWith(".trace")).sorted().forEach(files::add);
+                        }
+                    } else {
+                        files.add(path);
+                    }
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: java TraceTimeline [--address A] [--slowest] [--limit N] <trace dir or files>...");
+            System.exit(1);
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        for (Path file : files) read(file, entries);
+        Map<RequestKey, List<Entry>> requests = group(entries);
+        System.out.println(entries.size() + " events from " + files.size() + " files, " + requests.size() + " requests");
+
+        List<List<Entry>> timelines = new ArrayList<>();
+        for (List<Entry> timeline : requests.values()) {
+            timeline.sort(Comparator.comparingLong(Entry::timeNanos));
+            if (address == null || timeline.get(0).address() == address) timelines.add(timeline);
+        }
+        Comparator<List<Entry>> order = slowest
+                ? Comparator.comparingLong(TraceTimeline::duration).reversed()
+                : Comparator.comparingLong(timeline -> timeline.get(0).timeNanos());
+        timelines.sort(order);
+        for (List<Entry> timeline : timelines.subList(0, Math.min(limit, timelines.size()))) {
+            print(timeline);
+        }
+    }
+
+    // Requests by client and correlation id; replica steps join the request whose write they apply
+    private static Map<RequestKey, List<Entry>> group(List<Entry> entries) {
+        Map<RequestKey, List<Entry>> requests = new LinkedHashMap<>();
+        Map<Long, RequestKey> writes = new HashMap<>(); // address and sequence number -> request
+        List<Entry> replicated = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.event() == Tracer.Event.REPLICA_APPLIED) {
+                replicated.add(entry);
+            } else if (entry.correlationId() != 0 && entry.client() != 0) {
+                RequestKey key = new RequestKey(entry.client(), entry.correlationId());
+                requests.computeIfAbsent(key, k -> new ArrayList<>()).add(entry);
+                if (entry.event() == Tracer.Event.WRITE_APPLIED) {
+                    writes.put(write(entry.address(), entry.sequenceNumber()), key);
+                }
+            }
+        }
+        for (Entry entry : replicated) {
+            RequestKey key = writes.get(write(entry.address(), entry.sequenceNumber()));
+            if (key != null) requests.get(key).add(entry);
+        }
+        return requests;
+    }
+
+    private static long write(int address, long sequenceNumber) {
+        return ((long) address << 40) ^ sequenceNumber;
+    }
+
+    private static long duration(List<Entry> timeline) {
+        return timeline.get(timeline.size() - 1).timeNanos() - timeline.get(0).timeNanos();
+    }
+
+    private static void print(List<Entry> timeline) {
+        Entry first = timeline.get(0);
+        System.out.printf("%nrequest %08x/%d %s address=%d %.1fus%n", first.client(), first.correlationId(),
+                first.type(), first.address(), duration(timeline) / 1000.0);
+        for (Entry entry : timeline) {
+            System.out.printf("  +%10.1fus  %-20s %-18s %-14s address=%d seq=%d%n",
+                    (entry.timeNanos() - first.timeNanos()) / 1000.0, entry.node(), entry.event(),
+                    entry.type() == null ? "-" : entry.type(), entry.address(), entry.sequenceNumber());
+        }
+    }
+
+    private static void read(Path file, List<Entry> entries) throws IOException {
+        Tracer.Event[] events = Tracer.Event.values();
+        DSMMessage.Type[] types = DSMMessage.Type.values();
+        try (InputStream stream = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16))) {
+            if (in.readInt() != Tracer.MAGIC) {
+                System.err.println("Skipping " + file + ": not a trace file");
+                return;
+            }
+            short version = in.readShort();
+            if (version != Tracer.VERSION) {
+                System.err.println("Skipping " + file + ": trace format version " + version);
+                return;
+            }
+            byte[] name = new byte[in.readShort()];
+            in.readFully(name);
+            String node = new String(name, StandardCharsets.UTF_8);
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    return;
+                }
+                long sequenceNumber = in.readLong();
+                long correlationId = in.readLong();
+                long addressAndClient = in.readLong();
+                int kind = in.readInt();
+                int event = kind >>> 8;
+                int type = kind & 0xFF;
+                if (event >= events.length) continue; // written by a newer version
+                entries.add(new Entry(node, time, events[event], type < types.length ? types[type] : null,
+                        (int) (addressAndClient >> 32), sequenceNumber, correlationId, (int) addressAndClient));
+            }
+        } catch (EOFException e) {
+            // a record cut short by a crash or a file still being written
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Binary event tracing for a node or client. {@link #record} claims a slot in a preallocated
+ * ring of fixed-size records (event, message type, address, sequence number, correlation id,
+ * client and a timestamp) and returns; it never allocates, formats or blocks, and when the ring
+ * is full the event is dropped and counted. A background thread drains the ring to rolling files
+ * {@code <dsm.trace.dir>/<name>.<n>.trace}, which {@link TraceTimeline} turns back into
+ * per-request timelines across nodes.
+ *
+ * <p>{@code dsm.trace.level} (OFF, INFO or DEBUG; default OFF) picks which {@link Event}s are
+ * recorded. {@code dsm.trace.sample=N} keeps one in N, and {@code dsm.trace.sample.<EVENT>=N}
+ * overrides that per event. Sampling is decided by address (by sequence number for events without
+ * one), so every node keeps or skips the same requests and sampled timelines stay complete.
+ *
+ * <p>File format: a header of magic, version and the writer's name, then {@link #RECORD_BYTES}
+ * byte records, all big-endian.
+ */
+public class Tracer implements AutoCloseable {
+    public enum Level { OFF, INFO, DEBUG }
+
+    // Append only: the ordinal is what goes into the files
+    public enum Event {
+        CLIENT_SEND(Level.INFO),       // client sent a request
+        CLIENT_REPLY(Level.INFO),      // client got the reply; seq is the one it was served at
+        RECEIVED(Level.DEBUG),         // node picked a message off its queue
+        FORWARDED(Level.DEBUG),        // node sent a request on to the group that owns it
+        WRONG_OWNER(Level.INFO),       // node answered a request routed by an old table
+        WRITE_APPLIED(Level.INFO),     // primary applied a write under seq
+        WRITE_ACKED(Level.INFO),       // primary acknowledged the write to the client
+        REPLICA_APPLIED(Level.DEBUG),  // replica applied the write to address at seq
+        REPLICA_ACKED(Level.DEBUG),    // primary got a cumulative ack up to seq; client is the replica
+        SEQUENCE_ADVANCED(Level.DEBUG),// replica reached seq
+        READ_PARKED(Level.DEBUG),      // read waits for the replica to reach seq
+        READ_RELEASED(Level.DEBUG),    // parked read can be served now
+        READ_REDIRECTED(Level.INFO),   // parked read timed out and went to the primary
+        READ_SERVED(Level.INFO),       // read answered at seq
+        BUSY(Level.INFO);              // node turned a client request away; seq is the node's latest
+
+        private final Level level;
+
+        Event(Level level) {
+            this.level = level;
+        }
+    }
+
+    public static final Level LEVEL = Level.valueOf(System.getProperty("dsm.trace.level", "OFF").toUpperCase(Locale.ROOT));
+    public static final Path DIRECTORY = Path.of(System.getProperty("dsm.trace.dir", "traces"));
+    // Records the ring holds before events are dropped; rounded up to a power of two
+    private static final int RING_SIZE = Integer.getInteger("dsm.trace.ringSize", 1 << 16);
+    private static final long FILE_BYTES = Long.getLong("dsm.trace.fileMegabytes", 64) << 20;
+    private static final int FILES_KEPT = Integer.getInteger("dsm.trace.files", 8);
+
+    static final int MAGIC = 0x44534D54; // "DSMT"
+    static final short VERSION = 1;
+    public static final int RECORD_BYTES = 36;
+    private static final int WORDS = 5; // longs per record in the ring
+    // System.nanoTime() and the wall clock at the same moment, to timestamp records across processes;
+    // shared so every tracer in a JVM agrees on the time
+    private static final long ANCHOR_NANOS = System.nanoTime();
+    private static final long ANCHOR_EPOCH_NANOS = epochNanos(Instant.now());
+
+    // Records nothing, for when tracing is off
+    public static final Tracer DISABLED = new Tracer();
+
+    private final String name;
+    private final int[] sampleEvery; // by event ordinal; 0 = not recorded
+    private final long[] ring;
+    private final AtomicLongArray published; // slot -> position of the record in it, once written
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next position to claim
+    private volatile long consumed; // positions before this are drained
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private final Thread flushOnExit; // so events are not lost when the JVM exits without close()
+    private volatile boolean running = true;
+
+    private FileChannel file; // writer thread only
+    private long fileIndex;
+    private long fileBytes;
+
+    private Tracer() {
+        this.name = null;
+        this.sampleEvery = new int[Event.values().length];
+        this.ring = null;
+        this.published = null;
+        this.mask = 0;
+        this.writer = null;
+        this.flushOnExit = null;
+    }
+
+    private Tracer(String name) {
+        this.name = name;
+        this.sampleEvery = new int[Event.values().length];
+        int defaultSample = Math.max(1, Integer.getInteger("dsm.trace.sample", 1));
+        for (Event event : Event.values()) {
+            if (event.level.compareTo(LEVEL) > 0) continue;
+            sampleEvery[event.ordinal()] = Math.max(1, Integer.getInteger("dsm.trace.sample." + event.name(), defaultSample));
+        }
+        int capacity = Integer.highestOneBit(Math.max(2, RING_SIZE - 1)) << 1;
+        this.ring = new long[capacity * WORDS];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) published.set(i, -1);
+        this.mask = capacity - 1;
+        this.writer = new Thread(this::drainLoop, "trace-" + name);
+        writer.setDaemon(true);
+        this.flushOnExit = new Thread(this::close, "trace-flush-" + name);
+    }
+
+    // A tracer writing <name>.<n>.trace files, or DISABLED when dsm.trace.level is OFF
+    public static Tracer forNode(String name) {
+        if (LEVEL == Level.OFF) return DISABLED;
+        Tracer tracer = new Tracer(name);
+        try {
+            Files.createDirectories(DIRECTORY);
+            tracer.fileIndex = nextFileIndex(name);
+            tracer.openFile();
+        } catch (IOException e) {
+            System.err.println("[" + name + "] Tracing disabled, cannot write to " + DIRECTORY + ": " + e.getMessage());
+            return DISABLED;
+        }
+        tracer.writer.start();
+        Runtime.getRuntime().addShutdownHook(tracer.flushOnExit);
+        return tracer;
+    }
+
+    public boolean isEnabled(Event event) {
+        return sampleEvery[event.ordinal()] != 0;
+    }
+
+    // The message's own address, sequence number, correlation id and client
+    public void record(Event event, DSMMessage msg) {
+        record(event, msg, msg.getSequenceNumber());
+    }
+
+    public void record(Event event, DSMMessage msg, long sequenceNumber) {
+        if (sampleEvery[event.ordinal()] == 0) return;
+        record(event, msg.getType(), msg.getAddress() == null ? -1 : msg.getAddress().getValue(), sequenceNumber,
+                msg.getCorrelationId(), clientId(msg.getReplyToQueue()));
+    }
+
+    // type may be null, address -1 when there is none
+    public void record(Event event, DSMMessage.Type type, int address, long sequenceNumber, long correlationId, int client) {
+        int every = sampleEvery[event.ordinal()];
+        if (every == 0) return;
+        long nanos = System.nanoTime();
+        if (every > 1) {
+            long key = address >= 0 ? address : sequenceNumber;
+            if (Long.remainderUnsigned((key * 0x9E3779B97F4A7C15L) >>> 32, every) != 0) return;
+        }
+        long position;
+        do {
+            position = head.get();
+            if (position - consumed > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(position, position + 1));
+
+        int slot = (int) position & mask;
+        int base = slot * WORDS;
+        ring[base] = nanos;
+        ring[base + 1] = sequenceNumber;
+        ring[base + 2] = correlationId;
+        ring[base + 3] = ((long) address << 32) | (client & 0xFFFFFFFFL);
+        ring[base + 4] = (event.ordinal() << 8) | (type == null ? 0xFF : type.ordinal());
+        published.setRelease(slot, position);
+    }
+
+    private static long epochNanos(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    // Identifies a client (or replica) in records by its reply queue; 0 if there is none
+    public static int clientId(String replyQueue) {
+        return replyQueue == null ? 0 : replyQueue.hashCode();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    private void drainLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTES * 2048);
+        while (running) {
+            if (!drain(buffer)) LockSupport.parkNanos(1_000_000);
+        }
+        drain(buffer);
+        try {
+            file.close();
+        } catch (IOException e) {
+            // nothing left to lose
+        }
+    }
+
+    // Moves every published record to the file; false if there was none
+    private boolean drain(ByteBuffer buffer) {
+        long position = consumed;
+        long start = position;
+        while (true) {
+            int slot = (int) position & mask;
+            if (published.getAcquire(slot) != position) break;
+            int base = slot * WORDS;
+            buffer.putLong(ANCHOR_EPOCH_NANOS + (ring[base] - ANCHOR_NANOS));
+            buffer.putLong(ring[base + 1]);
+            buffer.putLong(ring[base + 2]);
+            buffer.putLong(ring[base + 3]);
+            buffer.putInt((int) ring[base + 4]);
+            position++;
+            consumed = position; // frees the slot for producers
+            if (buffer.remaining() < RECORD_BYTES) flush(buffer);
+        }
+        flush(buffer);
+        return position != start;
+    }
+
+    private void flush(ByteBuffer buffer) {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        try {
+            if (fileBytes + buffer.remaining() > FILE_BYTES) rollFile();
+            while (buffer.hasRemaining()) fileBytes += file.write(buffer);
+        } catch (IOException e) {
+            dropped.add(buffer.remaining() / RECORD_BYTES);
+        }
+        buffer.clear();
+    }
+
+    private void rollFile() throws IOException {
+        file.close();
+        Files.deleteIfExists(fileOf(name, fileIndex + 1 - FILES_KEPT));
+        fileIndex++;
+        openFile();
+    }
+
+    private void openFile() throws IOException {
+        file = FileChannel.open(fileOf(name, fileIndex),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(8 + nameBytes.length);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) nameBytes.length).put(nameBytes).flip();
+        fileBytes = 0;
+        while (header.hasRemaining()) fileBytes += file.write(header);
+    }
+
+    private static Path fileOf(String name, long index) {
+        return DIRECTORY.resolve(name + "." + index + ".trace");
+    }
+
+    // Continues after the files an earlier run left behind, so a restart does not overwrite them
+    private static long nextFileIndex(String name) throws IOException {
+        long next = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(DIRECTORY, name + ".*.trace")) {
+            for (Path path : files) {
+                String file = path.getFileName().toString();
+                String index = file.substring(name.length() + 1, file.length() - ".trace".length());
+                try {
+                    next = Math.max(next, Long.parseLong(index) + 1);
+                } catch (NumberFormatException e) {
+                    // someone else's file
+                }
+            }
+        }
+        return next;
+    }
+
+    // Writes out what is still in the ring and stops the writer thread
+    @Override
+    public synchronized void close() {
+        if (writer == null || !running) return;
+        running = false;
+        if (Thread.currentThread() != flushOnExit) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(flushOnExit);
+            } catch (IllegalStateException e) {
+                // already shutting down
+            }
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped.sum() > 0) {
+            System.err.println("[" + name + "] Trace dropped " + dropped.sum() + " events");
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of applied writes, stored in memory-mapped segment files named after
+ * the first sequence number they contain. Each record is 16 bytes:
+ * {@code int address, int value, long sequenceNumber}. The sequence number is written last
+ * and is never 0, so a zero where a sequence number should be marks the end of the log.
+ *
+ * Appends only touch the mapping; {@link #sync()} forces everything appended so far to disk
+ * in one call, so concurrent writes share a single fsync (group commit).
+ */
+public class WriteAheadLog implements AutoCloseable {
+    public static final int RECORD_SIZE = 16;
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+
+    public interface RecordConsumer {
+        void accept(long sequenceNumber, int address, int value);
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+
+    // Guarded by this
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long lastAppended;
+    private final List<MappedByteBuffer> unsynced = new ArrayList<>(); // rolled segments not yet forced
+
+    public WriteAheadLog(Path directory, int segmentBytes) throws IOException {
+        if (segmentBytes < RECORD_SIZE) {
+            throw new IllegalArgumentException("Segment size must hold at least one record");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes - segmentBytes % RECORD_SIZE;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Calls the consumer for every logged record with a sequence number above afterSequence,
+     * in log order, and returns the highest sequence number found (or afterSequence if none).
+     * Must be called before the first append.
+     */
+    public long replay(long afterSequence, RecordConsumer consumer) throws IOException {
+        long highest = afterSequence;
+        for (Path file : segmentFiles()) {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer records = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                while (records.remaining() >= RECORD_SIZE) {
+                    int address = records.getInt();
+                    int value = records.getInt();
+                    long sequenceNumber = records.getLong();
+                    if (sequenceNumber == 0) break; // end of this segment's data
+                    if (sequenceNumber > afterSequence) {
+                        consumer.accept(sequenceNumber, address, value);
+                        highest = Math.max(highest, sequenceNumber);
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            lastAppended = Math.max(lastAppended, highest);
+        }
+        return highest;
+    }
+
+    public synchronized void append(long sequenceNumber, int address, int value) throws IOException {
+        ensureSpace(sequenceNumber, 1);
+        put(address, value, sequenceNumber);
+        lastAppended = sequenceNumber;
+    }
+
+    // Logs a unit of entries that share one sequence number
+    public synchronized void append(int[] addresses, int[] values, long sequenceNumber) throws IOException {
+        ensureSpace(sequenceNumber, addresses.length);
+        for (int i = 0; i < addresses.length; i++) {
+            put(addresses[i], values[i], sequenceNumber);
+        }
+        lastAppended = sequenceNumber;
+    }
+
+    // Logs entries with their own sequence numbers, in order; the whole call is atomic with respect to snapshots
+    public synchronized void append(int[] addresses, int[] values, long[] sequenceNumbers, int from, int to)
+            throws IOException {
+        if (from >= to) return;
+        ensureSpace(sequenceNumbers[from], to - from);
+        for (int i = from; i < to; i++) {
+            put(addresses[i], values[i], sequenceNumbers[i]);
+        }
+        lastAppended = sequenceNumbers[to - 1];
+    }
+
+    // Highest sequence number appended so far; every write up to it is already applied to storage
+    public synchronized long lastAppended() {
+        return lastAppended;
+    }
+
+    /** Forces all appended records to disk and returns the highest sequence number now durable. */
+    public long sync() {
+        List<MappedByteBuffer> toForce;
+        long target;
+        synchronized (this) {
+            target = lastAppended;
+            toForce = new ArrayList<>(unsynced);
+            unsynced.clear();
+            if (segment != null) toForce.add(segment);
+        }
+        for (MappedByteBuffer buffer : toForce) {
+            buffer.force();
+        }
+        return target;
+    }
+
+    /** Deletes segments that only hold records at or below the given (snapshotted) sequence number. */
+    public void truncateUpTo(long sequenceNumber) throws IOException {
+        List<Path> files = segmentFiles();
+        for (int i = 0; i + 1 < files.size(); i++) {
+            long nextFirst = firstSequenceOf(files.get(i + 1));
+            if (nextFirst > sequenceNumber + 1) break;
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        synchronized (this) {
+            if (channel != null) channel.close();
+            channel = null;
+            segment = null;
+        }
+    }
+
+    // Rolls to a new segment when the current one cannot take the records. A unit never spans segments.
+    private void ensureSpace(long firstSequenceNumber, int records) throws IOException {
+        int bytes = records * RECORD_SIZE;
+        if (segment != null && segment.remaining() >= bytes) return;
+        if (segment != null) {
+            unsynced.add(segment);
+            channel.close();
+        }
+        Path file = directory.resolve(String.format("%s%020d%s", PREFIX, firstSequenceNumber, SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, bytes));
+    }
+
+    private void put(int address, int value, long sequenceNumber) {
+        int position = segment.position();
+        segment.putInt(position, address);
+        segment.putInt(position + 4, value);
+        segment.putLong(position + 8, sequenceNumber); // written last: marks the record complete
+        segment.position(position + RECORD_SIZE);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> {
+                        String name = f.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                    })
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static long firstSequenceOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}